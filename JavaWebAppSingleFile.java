@@ -16,13 +16,55 @@
  * - Authentication logic isolated for unit testing
  * - Explicit testing intent markers
  *
+ * Trading Enhancements:
+ * - Lock-free stock snapshot cache with write-through on commit
+ * - In-memory price-time limit order book (limit/market, partial fills, cancel)
+ * - Single-writer matching shards per symbol fed by lock-free queues
+ * - Memory-mapped order/trade journal with group commit; trades table is a projection
+ * - Durable tables, periodic book snapshots and journal-tail replay on restart
+ * - Server-Sent Events price stream (/stocks/stream) with per-client coalescing
+ * - Binary WebSocket gateway (/ws) for quote subscriptions and order entry
+ * - Async servlets: login, stock list and orders run off the Jetty request threads
+ * - Optional virtual-thread request handling (-Dserver.threads=virtual) + ModeBenchmark
+ * - Bounded BCrypt executor for logins: overload answered with 429, login.* metrics
+ * - Stateless HMAC-signed login tokens (AUTH cookie) checked in AuthFilter, with revocation
+ * - Optional off-heap HttpSession store (-Dsession.store=offheap) with peer replication
+ * - /stocks rendered straight to bytes (HTML, or JSON via ?format=json / Accept)
+ * - /api/quotes[/{symbol}] JSON with strong ETags, 304s and cached gzip bodies
+ * - /api/prices batch price updates via chunked JDBC batches in one transaction (admin)
+ * - Market data ingest (replay file, UDP, TCP) with per-symbol tick coalescing
+ * - Tick history in day-partitioned columnar mapped files, /api/ticks range queries
+ * - Incremental 1s/1m/5m/1h/1d OHLCV candles from feed ticks and trades, /api/candles
+ * - Fixed-point prices: every price column and model field is long ticks (cents)
+ * - SymbolRegistry: dense int symbol ids, allocation-free lookups, per-symbol state in arrays
+ * - In-memory cash/position ledger per user (StampedLock per account), async H2 persistence, /portfolio
+ * - Pre-trade risk checks (size, price band, position, buying power) with open-order reservations
+ * - Incremental mark-to-market: symbol -> holders index, per-tick P&L deltas, O(1) portfolio totals
+ * - /api/trades per-user trade history with keyset cursors over covering (user, time, id) indexes
+ * - Versioned schema migrations (schema_version): startup applies only missing steps
+ *
  * Demo users:
  *  - student / student123
  *  - reviewer / reviewer123
  */
 
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.session.AbstractSessionDataStore;
+import org.eclipse.jetty.server.session.NullSessionCache;
+import org.eclipse.jetty.server.session.SessionData;
+import org.eclipse.jetty.server.session.SessionHandler;
+import org.eclipse.jetty.util.ClassLoadingObjectInputStream;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 import org.eclipse.jetty.servlet.*;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WebSocketListener;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.server.JettyServerUpgradeRequest;
+import org.eclipse.jetty.websocket.server.JettyServerUpgradeResponse;
+import org.eclipse.jetty.websocket.server.config.JettyWebSocketServletContainerInitializer;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
@@ -32,11 +74,48 @@ import org.h2.tools.RunScript;
 import jakarta.servlet.*;
 import jakarta.servlet.http.*;
 
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.sql.DataSource;
 import java.io.*;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.zip.GZIPOutputStream;
 
 public class JavaWebAppSingleFile {
 
@@ -47,49 +126,309 @@ public class JavaWebAppSingleFile {
     private static final String JDBC_USER = "sa";
     private static final String JDBC_PASS = "";
 
+    private static final int MATCHING_SHARDS =
+            Integer.getInteger("matching.shards", Runtime.getRuntime().availableProcessors());
+    private static final int SHARD_QUEUE_CAPACITY = 65_536;
+    private static final long ORDER_TIMEOUT_MS = 2_000;
+    private static final long PRICE_FEED_INTERVAL_MS = 50;
+
+    // Market data ingest: any of feed.file / feed.udpPort / feed.tcpPort enables it
+    private static final long FEED_WINDOW_MS = Long.getLong("feed.windowMs", 100);
+    // every ingested tick, day-partitioned columnar files
+    private static final Path TICK_DIR = Paths.get("data", "ticks");
+
+    // Blocking request work (JDBC, response writes) runs here, not on Jetty threads;
+    // server.threads=virtual puts it on virtual threads, otherwise this platform pool
+    private static final int REQUEST_THREADS = Integer.getInteger("request.threads", 64);
+    private static final int REQUEST_QUEUE = Integer.getInteger("request.queue", 1_000);
+    private static final long ASYNC_TIMEOUT_MS = 10_000;
+
+    // BCrypt verification gets its own small CPU pool so a login storm can't starve trading
+    private static final int LOGIN_THREADS = Integer.getInteger("login.threads",
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+    private static final int LOGIN_QUEUE = Integer.getInteger("login.queue", 32);
+
+    // Login tokens: share auth.secret (base64) across nodes, otherwise a random per-process key
+    private static final long AUTH_TTL_MS = Long.getLong("auth.ttlMs", 8 * 60 * 60 * 1000L);
+    // usernames granted the admin role (batch price updates)
+    private static final Set<String> ADMIN_USERS =
+            Set.of(System.getProperty("auth.admins", "reviewer").split(","));
+
+    // Ledger: cash a new account opens with, and how often changed accounts are written to H2
+    private static final long LEDGER_STARTING_CASH = parseTicks(System.getProperty("ledger.startingCash", "100000"));
+    private static final long LEDGER_FLUSH_MS = Long.getLong("ledger.flushMs", 500);
+
+    // Pre-trade risk limits applied to every account; risk.bandBps=0 turns the price band off
+    private static final long RISK_MAX_ORDER_QTY = Long.getLong("risk.maxOrderQty", 100_000);
+    private static final long RISK_MAX_POSITION = Long.getLong("risk.maxPosition", 1_000_000);
+    private static final long RISK_BAND_BPS = Long.getLong("risk.bandBps", 1_000);
+
+    // rows per executeBatch call in a bulk price update (all chunks share one transaction)
+    private static final int PRICE_BATCH_CHUNK = Integer.getInteger("prices.batchChunk", 500);
+
+    // Journal segments live under ./data next to the H2 database files
+    private static final Path JOURNAL_DIR = Paths.get("data", "journal");
+    private static final int JOURNAL_SEGMENT_BYTES =
+            Integer.getInteger("journal.segmentBytes", 64 << 20);
+    private static final boolean JOURNAL_FSYNC =
+            Boolean.parseBoolean(System.getProperty("journal.fsync", "true"));
+
+    // Book snapshots bound how much journal a restart has to replay
+    private static final Path SNAPSHOT_DIR = Paths.get("data", "snapshot");
+    private static final int SNAPSHOT_MAGIC = 0x534E4150; // "SNAP"
+    private static final long SNAPSHOT_EVERY_ORDERS = Long.getLong("snapshot.everyOrders", 500_000);
+    private static final long SNAPSHOT_INTERVAL_MS = Long.getLong("snapshot.intervalMs", 60_000);
+
+    private static final int HTTP_PORT = Integer.getInteger("server.port", 8080);
+
+    // -Dsession.store=offheap: HttpSession data in a mapped file, optionally replicated to peers
+    private static final Path SESSION_FILE = Paths.get("data", "sessions", "sessions.dat");
+    private static final int SESSION_CAPACITY = Integer.getInteger("session.capacity", 1 << 21);
+    private static final int SESSION_SLOT_BYTES = Integer.getInteger("session.slotBytes", 512);
+    // classes session attributes may deserialize to; anything else fails the load
+    private static final ObjectInputFilter SESSION_SERIAL_FILTER = ObjectInputFilter.Config.createFilter(
+            System.getProperty("session.serialFilter", "maxdepth=20;maxrefs=10000;"
+                    + "java.lang.*;java.util.*;java.time.*;java.math.*;JavaWebAppSingleFile$*;!*"));
+
+    // "platform" (QueuedThreadPool) or "virtual" (Jetty dispatches requests on virtual threads)
+    private static final String SERVER_THREADS = System.getProperty("server.threads", "platform");
+
     private static HikariDataSource ds;
+    private static StockService stockService;
+    private static Executor requestExecutor;
+    private static ThreadPoolExecutor loginExecutor;
+    private static TokenAuthority tokens;
+    private static PriceFeed priceFeed;
+    private static FeedIngester feedIngester;
+    private static TickStore tickStore;
+    private static CandleEngine candleEngine;
+    private static CandleDAO candleDao;
+    private static Ledger ledger;
+    private static RiskEngine riskEngine;
+    private static MarkToMarket markToMarket;
 
     /* =============================
        MAIN
        ============================= */
     public static void main(String[] args) throws Exception {
-        Server server = new Server(8080);
-        ServletContextHandler ctx =
-                new ServletContextHandler(ServletContextHandler.SESSIONS);
+        long bootStart = System.nanoTime();
+        boolean virtual = "virtual".equals(SERVER_THREADS) && VirtualThreads.areSupported();
+        if ("virtual".equals(SERVER_THREADS) && !virtual) {
+            System.out.println("Virtual threads not supported by this JVM; using platform threads");
+        }
+        Server server = new Server(createThreadPool(virtual));
+        ServerConnector http = new ServerConnector(server);
+        http.setPort(HTTP_PORT);
+        server.addConnector(http);
+        // login state lives in the signed AUTH cookie; HttpSession is only backed when asked for
+        boolean offHeapSessions = "offheap".equals(System.getProperty("session.store"));
+        ServletContextHandler ctx = new ServletContextHandler(offHeapSessions
+                ? ServletContextHandler.SESSIONS : ServletContextHandler.NO_SESSIONS);
+        if (offHeapSessions) configureOffHeapSessions(ctx);
         ctx.setContextPath("/");
 
-        ds = createDataSource(JDBC_URL, JDBC_USER, JDBC_PASS);
+        ds = createDataSource(JDBC_URL, JDBC_USER, JDBC_PASS, virtual);
+        requestExecutor = createRequestExecutor(virtual);
+        loginExecutor = createLoginExecutor();
+        tokens = new TokenAuthority(authSecret(), AUTH_TTL_MS);
         ctx.setAttribute("datasource", ds);
 
-        initSchemaAndSeed();
+        migrate(ds);
+        stockService = new StockService(ds);
+        // the ledger catches up from the trades table before the projector starts adding to it
+        ledger = new Ledger(new LedgerDAO(ds), new TradeDAO(ds), stockService.snapshot().registry,
+                LEDGER_STARTING_CASH, LEDGER_FLUSH_MS);
+        ledger.recover();
+        stockService.addTradeListener(ledger::onTrades);
+        riskEngine = new RiskEngine(ledger, stockService.snapshot().registry.size(),
+                RISK_MAX_ORDER_QTY, RISK_MAX_POSITION, RISK_BAND_BPS);
+        stockService.setRiskEngine(riskEngine);
+        // after the ledger, so a fill's cash is debited before its reservation is released
+        stockService.addTradeListener(riskEngine::onTrades);
+        // marks start from the snapshot, so it listens before replay can publish a trade price
+        markToMarket = new MarkToMarket(stockService, LEDGER_STARTING_CASH);
+        markToMarket.load(ledger);
+        markToMarket.start();
+        ledger.setPositionListener(markToMarket::onFill);
+        stockService.addPriceListener(markToMarket);
+        // snapshot + journal tail are replayed into the books before any request is accepted
+        stockService.start(JOURNAL_DIR, SNAPSHOT_DIR, MATCHING_SHARDS, SHARD_QUEUE_CAPACITY);
+        ledger.start();
+        priceFeed = new PriceFeed(stockService, PRICE_FEED_INTERVAL_MS);
+        stockService.addPriceListener(priceFeed);
+        priceFeed.start();
+        tickStore = new TickStore(TICK_DIR, stockService.symbols());
+        candleDao = new CandleDAO(ds);
+        candleEngine = new CandleEngine(stockService.symbols(), candleDao);
+        candleEngine.start();
+        stockService.addTradeListener(candleEngine::onTrades);
+        feedIngester = createFeedIngester();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (feedIngester != null) feedIngester.stop();
+                tickStore.close();
+                candleEngine.stop();
+                stockService.stop();
+                markToMarket.stop();
+                ledger.stop();
+            } catch (InterruptedException ignored) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                System.err.println("Shutdown: " + e);
+            }
+        }));
 
         ctx.addServlet(new ServletHolder(new HomeServlet()), "/");
-        ctx.addServlet(new ServletHolder(new LoginServlet()), "/login");
-        ctx.addServlet(new ServletHolder(new StocksServlet()), "/stocks");
+        ctx.addServlet(asyncHolder(new LoginServlet()), "/login");
+        ctx.addServlet(asyncHolder(new StocksServlet()), "/stocks");
+        ctx.addServlet(asyncHolder(new PriceStreamServlet()), "/stocks/stream");
+        ctx.addServlet(asyncHolder(new OrdersServlet()), "/orders");
+        ctx.addServlet(new ServletHolder(new PortfolioServlet()), "/portfolio");
         ctx.addServlet(new ServletHolder(new LogoutServlet()), "/logout");
+        ctx.addServlet(new ServletHolder(new MetricsServlet()), "/metrics");
+        ctx.addServlet(new ServletHolder(new QuotesServlet()), "/api/quotes/*");
+        ctx.addServlet(asyncHolder(new PricesServlet()), "/api/prices");
+        ctx.addServlet(asyncHolder(new TicksServlet()), "/api/ticks/*");
+        ctx.addServlet(asyncHolder(new CandlesServlet()), "/api/candles/*");
+        ctx.addServlet(asyncHolder(new TradeHistoryServlet()), "/api/trades");
+
+        FilterHolder auth = new FilterHolder(new AuthFilter());
+        auth.setAsyncSupported(true);
+        ctx.addFilter(auth, "/*", EnumSet.of(DispatcherType.REQUEST));
 
-        ctx.addFilter(new FilterHolder(new AuthFilter()),
-                "/*", EnumSet.of(DispatcherType.REQUEST));
+        JettyWebSocketServletContainerInitializer.configure(ctx, (context, container) -> {
+            container.setMaxBinaryMessageSize(1024);
+            container.setIdleTimeout(Duration.ofMinutes(10));
+            container.addMapping("/ws", TradingSocket::create);
+        });
 
         server.setHandler(ctx);
         server.start();
-        System.out.println("Server running at http://localhost:8080/");
+        long bootMillis = (System.nanoTime() - bootStart) / 1_000_000;
+        Metrics.set("startup.millis", bootMillis);
+        System.out.println("Server running at http://localhost:" + HTTP_PORT + "/ (started in " + bootMillis + " ms)");
         server.join();
     }
 
     /* =============================
        DATASOURCE
        ============================= */
-    private static HikariDataSource createDataSource(String url, String user, String pass) {
+    private static HikariDataSource createDataSource(String url, String user, String pass,
+                                                     boolean virtualThreads) {
         HikariConfig cfg = new HikariConfig();
         cfg.setJdbcUrl(url);
         cfg.setUsername(user);
         cfg.setPassword(pass);
-        cfg.setMaximumPoolSize(10);
+        if (virtualThreads) {
+            // Thousands of virtual threads may block here at once: the pool, not the thread
+            // count, is now the DB concurrency limit, so size it to the CPU and let callers
+            // queue on it for longer instead of failing fast.
+            cfg.setMaximumPoolSize(Math.max(10, Runtime.getRuntime().availableProcessors() * 2));
+            cfg.setConnectionTimeout(60_000);
+        } else {
+            cfg.setMaximumPoolSize(10);
+        }
         cfg.setAutoCommit(false);
         return new HikariDataSource(cfg);
     }
 
+    private static FeedIngester createFeedIngester() throws IOException, SQLException {
+        String file = System.getProperty("feed.file");
+        Integer udp = Integer.getInteger("feed.udpPort");
+        Integer tcp = Integer.getInteger("feed.tcpPort");
+        if (file == null && udp == null && tcp == null) return null;
+        FeedIngester ingester = new FeedIngester(stockService, FEED_WINDOW_MS);
+        if (tickStore != null) ingester.addTap(tickStore);
+        if (candleEngine != null) ingester.addTap(candleEngine);
+        if (file != null) ingester.addSource(new FileTickSource(Paths.get(file)));
+        if (udp != null) ingester.addSource(new UdpTickSource(udp));
+        if (tcp != null) ingester.addSource(new TcpTickSource(tcp));
+        ingester.start();
+        return ingester;
+    }
+
+    // NullSessionCache: every request loads from and saves to the off-heap store, nothing is cached on heap
+    private static void configureOffHeapSessions(ServletContextHandler ctx) {
+        OffHeapSessionDataStore store =
+                new OffHeapSessionDataStore(SESSION_FILE, SESSION_CAPACITY, SESSION_SLOT_BYTES);
+        int replicationPort = Integer.getInteger("session.replicationPort", 0);
+        if (replicationPort > 0) {
+            // frames are signed with the shared token key, so a per-process random key would reject every peer
+            String secret = System.getProperty("auth.secret");
+            if (secret == null) {
+                throw new IllegalStateException("session.replicationPort needs -Dauth.secret shared by all peers");
+            }
+            store.setReplicator(new SessionReplicator(store,
+                    new InetSocketAddress(System.getProperty("session.replicationHost", "127.0.0.1"),
+                            replicationPort),
+                    System.getProperty("session.peers", ""), Base64.getDecoder().decode(secret)));
+        }
+        SessionHandler sessions = ctx.getSessionHandler();
+        NullSessionCache cache = new NullSessionCache(sessions);
+        cache.setSessionDataStore(store);
+        sessions.setSessionCache(cache);
+    }
+
+    private static QueuedThreadPool createThreadPool(boolean virtualThreads) {
+        QueuedThreadPool pool = new QueuedThreadPool();
+        pool.setName("jetty");
+        if (virtualThreads) {
+            // selectors and acceptors stay on the pool; request handling moves to virtual threads
+            pool.setVirtualThreadsExecutor(VirtualThreads.getDefaultVirtualThreadsExecutor());
+        }
+        System.out.println("Jetty request threads: " + (virtualThreads ? "virtual" : "platform"));
+        return pool;
+    }
+
+    /* =============================
+       REQUEST EXECUTOR
+       ============================= */
+    // Same switch and detection as the Jetty pool: main resolves server.threads once through VirtualThreads
+    private static Executor createRequestExecutor(boolean virtualThreads) {
+        if (virtualThreads) {
+            // one virtual thread per request, so blocking JDBC costs no platform thread
+            System.out.println("Request executor: virtual threads");
+            return VirtualThreads.getDefaultVirtualThreadsExecutor();
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(REQUEST_QUEUE), r -> {
+                    Thread t = new Thread(r, "request-worker");
+                    t.setDaemon(true);
+                    return t;
+                });
+        pool.allowCoreThreadTimeOut(true);
+        System.out.println("Request executor: " + REQUEST_THREADS + " platform threads");
+        return pool;
+    }
+
+    private static byte[] authSecret() {
+        String configured = System.getProperty("auth.secret");
+        if (configured != null) return Base64.getDecoder().decode(configured);
+        System.out.println("auth.secret not set; login tokens are valid on this node until restart");
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    // No caller-runs and no growth: a full queue is rejected and answered with 429
+    private static ThreadPoolExecutor createLoginExecutor() {
+        AtomicInteger n = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(LOGIN_THREADS, LOGIN_THREADS,
+                0, TimeUnit.SECONDS, new ArrayBlockingQueue<>(LOGIN_QUEUE), r -> {
+                    Thread t = new Thread(r, "bcrypt-" + n.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        System.out.println("Login executor: " + LOGIN_THREADS + " threads, queue " + LOGIN_QUEUE);
+        return pool;
+    }
+
+    private static ServletHolder asyncHolder(Servlet servlet) {
+        ServletHolder h = new ServletHolder(servlet);
+        h.setAsyncSupported(true);
+        return h;
+    }
+
     // REVIEW-2: exposed only for unit tests
     static DataSource getDataSourceForTests() {
         return ds;
@@ -98,49 +437,198 @@ public class JavaWebAppSingleFile {
     /* =============================
        DB INIT
        ============================= */
-    private static void initSchemaAndSeed() {
-        try (Connection c = ds.getConnection()) {
-            RunScript.execute(c, new StringReader(defaultSchemaSql()));
+    /** One schema step. Steps must be safe to re-run: DDL commits on its own in H2. */
+    interface MigrationStep {
+        void apply(Connection c) throws SQLException;
+    }
 
-            UserDAO dao = new UserDAO(ds);
-            if (dao.findByUsername("student").isEmpty()) {
-                dao.insert(new User(0, "student",
-                        BCrypt.hashpw("student123", BCrypt.gensalt(12)),
-                        "Demo Student"));
-            }
-            if (dao.findByUsername("reviewer").isEmpty()) {
-                dao.insert(new User(0, "reviewer",
-                        BCrypt.hashpw("reviewer123", BCrypt.gensalt(12)),
-                        "Project Reviewer"));
+    static final class Migration {
+        final int version;
+        final String description;
+        final MigrationStep step;
+        Migration(int version, String description, MigrationStep step) {
+            this.version = version; this.description = description; this.step = step;
+        }
+    }
+
+    // Append only: a shipped step is never edited, a schema change is a new version
+    private static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "baseline tables and seed stocks", sql(baselineSchemaSql())),
+        new Migration(2, "demo users", JavaWebAppSingleFile::seedDemoUsers),
+        new Migration(3, "price columns as ticks", JavaWebAppSingleFile::upgradePriceColumns),
+        new Migration(4, "trade history indexes", sql(
+            "-- per-user history, newest first; symbol, price and qty make the index covering",
+            "CREATE INDEX IF NOT EXISTS trades_buyer_time ON trades(buyer_id, trade_time DESC, id DESC, symbol, price, qty);",
+            "CREATE INDEX IF NOT EXISTS trades_seller_time ON trades(seller_id, trade_time DESC, id DESC, symbol, price, qty);")),
+        new Migration(5, "unique stock symbols", sql(
+            "ALTER TABLE stocks ALTER COLUMN symbol SET NOT NULL;",
+            "-- also serves findAll's ORDER BY symbol and the projector's UPDATE ... WHERE symbol=?",
+            "CREATE UNIQUE INDEX IF NOT EXISTS stocks_symbol ON stocks(symbol);")),
+        new Migration(6, "login columns not null", sql(
+            "ALTER TABLE users ALTER COLUMN username SET NOT NULL;",
+            "ALTER TABLE users ALTER COLUMN password SET NOT NULL;"))
+    );
+
+    private static MigrationStep sql(String... lines) {
+        String script = String.join("\n", lines);
+        return c -> RunScript.execute(c, new StringReader(script));
+    }
+
+    /**
+     * Brings the schema up to the last entry of MIGRATIONS, applying only
+     * the versions missing from schema_version, each recorded in its own
+     * commit. An up-to-date database is only read.
+     */
+    static void migrate(DataSource db) {
+        try (Connection c = db.getConnection()) {
+            int current;
+            try (Statement st = c.createStatement()) {
+                st.execute("CREATE TABLE IF NOT EXISTS schema_version("
+                        + "version INT PRIMARY KEY, description VARCHAR(200), applied_at TIMESTAMP)");
+                try (ResultSet rs = st.executeQuery("SELECT COALESCE(MAX(version), 0) FROM schema_version")) {
+                    rs.next();
+                    current = rs.getInt(1);
+                }
             }
             c.commit();
+            int applied = 0;
+            for (Migration m : MIGRATIONS) {
+                if (m.version <= current) continue;
+                try (PreparedStatement ps = c.prepareStatement(
+                        "INSERT INTO schema_version(version, description, applied_at) VALUES(?,?,CURRENT_TIMESTAMP)")) {
+                    m.step.apply(c);
+                    ps.setInt(1, m.version);
+                    ps.setString(2, m.description);
+                    ps.executeUpdate();
+                    c.commit();
+                } catch (SQLException e) {
+                    c.rollback();
+                    throw new SQLException("Migration " + m.version + " (" + m.description + ") failed", e);
+                }
+                System.out.println("Applied migration " + m.version + ": " + m.description);
+                current = m.version;
+                applied++;
+            }
+            Metrics.set("schema.version", current);
+            Metrics.set("schema.migrationsApplied", applied);
         } catch (SQLException e) {
-            throw new RuntimeException("DB init failed", e);
+            throw new RuntimeException("DB migration failed", e);
+        }
+    }
+
+    // on the migration's own connection, so the users commit together with their version row
+    private static void seedDemoUsers(Connection c) throws SQLException {
+        seedUser(c, "student", "student123", "Demo Student");
+        seedUser(c, "reviewer", "reviewer123", "Project Reviewer");
+    }
+
+    private static void seedUser(Connection c, String username, String password, String fullname)
+            throws SQLException {
+        try (PreparedStatement find = c.prepareStatement("SELECT 1 FROM users WHERE username=?")) {
+            find.setString(1, username);
+            try (ResultSet rs = find.executeQuery()) {
+                if (rs.next()) return;
+            }
+        }
+        try (PreparedStatement ps = c.prepareStatement(
+                "INSERT INTO users(username,password,fullname) VALUES(?,?,?)")) {
+            ps.setString(1, username);
+            ps.setString(2, BCrypt.hashpw(password, BCrypt.gensalt(12)));
+            ps.setString(3, fullname);
+            ps.executeUpdate();
+        }
+    }
+
+    // Databases created while prices were DOUBLE are converted to ticks in place, once
+    private static void upgradePriceColumns(Connection c) throws SQLException {
+        String[][] columns = { { "STOCKS", "PRICE" }, { "TRADES", "PRICE" },
+                { "CANDLES", "OPEN" }, { "CANDLES", "HIGH" }, { "CANDLES", "LOW" }, { "CANDLES", "CLOSE" } };
+        try (PreparedStatement type = c.prepareStatement("SELECT DATA_TYPE FROM INFORMATION_SCHEMA.COLUMNS"
+                     + " WHERE TABLE_SCHEMA='PUBLIC' AND TABLE_NAME=? AND COLUMN_NAME=?");
+             Statement st = c.createStatement()) {
+            for (String[] col : columns) {
+                type.setString(1, col[0]);
+                type.setString(2, col[1]);
+                try (ResultSet rs = type.executeQuery()) {
+                    if (!rs.next() || !rs.getString(1).startsWith("DOUBLE")) continue;
+                }
+                st.executeUpdate("UPDATE " + col[0] + " SET " + col[1] + "=ROUND(" + col[1] + "*" + PRICE_SCALE + ")");
+                st.executeUpdate("ALTER TABLE " + col[0] + " ALTER COLUMN " + col[1] + " SET DATA TYPE BIGINT");
+                System.out.println("Converted " + col[0] + "." + col[1] + " to price ticks");
+            }
         }
     }
 
-    private static String defaultSchemaSql() {
+    // The schema as of version 1; seed rows only go into an empty table.
+    // Every price column holds integer ticks (1/PRICE_SCALE), never floating point.
+    private static String baselineSchemaSql() {
         return String.join("\n",
-            "DROP TABLE IF EXISTS users;",
-            "CREATE TABLE users(",
+            "CREATE TABLE IF NOT EXISTS users(",
             " id INT AUTO_INCREMENT PRIMARY KEY,",
             " username VARCHAR(50) UNIQUE,",
             " password VARCHAR(255),",
             " fullname VARCHAR(100)",
             ");",
             "",
-            "DROP TABLE IF EXISTS stocks;",
-            "CREATE TABLE stocks(",
+            "CREATE TABLE IF NOT EXISTS stocks(",
             " id INT AUTO_INCREMENT PRIMARY KEY,",
             " symbol VARCHAR(10),",
             " name VARCHAR(150),",
-            " price DOUBLE",
+            " price BIGINT",
+            ");",
+            "",
+            "INSERT INTO stocks(symbol,name,price) SELECT * FROM (VALUES",
+            "('AAPL','Apple Inc.',17512),",
+            "('GOOG','Alphabet Inc.',13445),",
+            "('TSLA','Tesla Inc.',25000))",
+            "WHERE NOT EXISTS (SELECT 1 FROM stocks);",
+            "",
+            "CREATE TABLE IF NOT EXISTS trades(",
+            " id BIGINT AUTO_INCREMENT PRIMARY KEY,",
+            " symbol VARCHAR(10),",
+            " price BIGINT,",
+            " qty BIGINT,",
+            " buy_order BIGINT,",
+            " sell_order BIGINT,",
+            " buyer_id INT,",
+            " seller_id INT,",
+            " trade_time TIMESTAMP",
+            ");",
+            "",
+            "CREATE TABLE IF NOT EXISTS candles(",
+            " symbol VARCHAR(10),",
+            " period VARCHAR(3),",
+            " start_time BIGINT,",
+            " open BIGINT, high BIGINT, low BIGINT, close BIGINT,",
+            " volume BIGINT,",
+            " PRIMARY KEY(symbol, period, start_time)",
+            ");",
+            "",
+            "CREATE TABLE IF NOT EXISTS accounts(",
+            " user_id INT PRIMARY KEY,",
+            " cash BIGINT,",
+            " seq BIGINT,",
+            " last_trade BIGINT",
+            ");",
+            "",
+            "CREATE TABLE IF NOT EXISTS positions(",
+            " user_id INT,",
+            " symbol VARCHAR(10),",
+            " qty BIGINT,",
+            " cost BIGINT,",
+            " PRIMARY KEY(user_id, symbol)",
+            ");",
+            "",
+            "CREATE TABLE IF NOT EXISTS ledger_cursor(",
+            " id INT PRIMARY KEY,",
+            " trade_id BIGINT",
             ");",
             "",
-            "INSERT INTO stocks(symbol,name,price) VALUES",
-            "('AAPL','Apple Inc.',175.12),",
-            "('GOOG','Alphabet Inc.',134.45),",
-            "('TSLA','Tesla Inc.',250.00);"
+            "CREATE TABLE IF NOT EXISTS journal_cursor(",
+            " shard INT PRIMARY KEY,",
+            " segment BIGINT,",
+            " pos INT",
+            ");"
         );
     }
 
@@ -162,13 +650,150 @@ public class JavaWebAppSingleFile {
         public String getFullname() { return fullname; }
     }
 
+    // price is in ticks: 17512 is 175.12
     public static class Stock {
-        int id; String symbol; String name; double price;
-        public Stock(int i, String s, String n, double p) {
+        final int id; final String symbol; final String name; final long price;
+        public Stock(int i, String s, String n, long p) {
             id=i; symbol=s; name=n; price=p;
         }
     }
 
+    public static class Trade {
+        final String symbol; final long price; final long qty;
+        final long buyOrder; final long sellOrder; final int buyerId; final int sellerId;
+        final long time;
+        long id; // trades.id, assigned when the projector inserts the row
+        boolean recovered; // journaled before the last restart's recovery point
+        public Trade(String symbol, long price, long qty, long buyOrder, long sellOrder,
+                     int buyerId, int sellerId, long time) {
+            this.symbol = symbol; this.price = price; this.qty = qty;
+            this.buyOrder = buyOrder; this.sellOrder = sellOrder;
+            this.buyerId = buyerId; this.sellerId = sellerId; this.time = time;
+        }
+    }
+
+    /** One user's cash and positions as of ledger sequence seq; cash and cost in ticks. */
+    public static class Portfolio {
+        final int userId; final long seq; final long lastTrade; final long cash;
+        final int[] symbols; final long[] qty; final long[] cost; // symbol ids, parallel arrays
+        public Portfolio(int userId, long seq, long lastTrade, long cash, int[] symbols, long[] qty, long[] cost) {
+            this.userId = userId; this.seq = seq; this.lastTrade = lastTrade; this.cash = cash;
+            this.symbols = symbols; this.qty = qty; this.cost = cost;
+        }
+    }
+
+    /**
+     * Dense int ids for the symbols of the stocks table, assigned in symbol
+     * order, so per-symbol state (books, price and candle arrays, subscriber
+     * flags) is a plain array indexed by id. Names resolve through one
+     * open-addressing table over the ASCII symbol and allocate nothing,
+     * whether they arrive as a String, raw bytes or a journal buffer.
+     */
+    public static final class SymbolRegistry {
+        private final String[] symbols;
+        private final byte[][] bytes;
+        private final int[] table; // id + 1, 0 = empty
+        private final int mask;
+
+        SymbolRegistry(Stock[] stocks) {
+            symbols = new String[stocks.length];
+            bytes = new byte[stocks.length][];
+            table = new int[Integer.highestOneBit(Math.max(1, stocks.length) * 4) * 2];
+            mask = table.length - 1;
+            for (int id = 0; id < stocks.length; id++) {
+                symbols[id] = stocks[id].symbol;
+                bytes[id] = symbols[id].getBytes(StandardCharsets.US_ASCII);
+                int slot = mix(symbols[id].hashCode()) & mask;
+                while (table[slot] != 0) slot = (slot + 1) & mask;
+                table[slot] = id + 1;
+            }
+        }
+
+        int size() { return symbols.length; }
+
+        String symbol(int id) { return symbols[id]; }
+
+        byte[] bytes(int id) { return bytes[id]; }
+
+        int id(String symbol) {
+            if (symbol == null) return -1;
+            for (int slot = mix(symbol.hashCode()) & mask; ; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (id < 0 || symbols[id].equals(symbol)) return id;
+            }
+        }
+
+        int id(byte[] b, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) h = 31 * h + b[i];
+            for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (id < 0 || Arrays.equals(bytes[id], 0, bytes[id].length, b, from, to)) return id;
+            }
+        }
+
+        // absolute reads; the buffer's position is left alone
+        int id(ByteBuffer b, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++) h = 31 * h + b.get(i);
+            for (int slot = mix(h) & mask; ; slot = (slot + 1) & mask) {
+                int id = table[slot] - 1;
+                if (id < 0 || equals(bytes[id], b, from, to)) return id;
+            }
+        }
+
+        private static boolean equals(byte[] name, ByteBuffer b, int from, int to) {
+            if (name.length != to - from) return false;
+            for (int i = 0; i < name.length; i++) if (name[i] != b.get(from + i)) return false;
+            return true;
+        }
+
+        // ASCII bytes hash like the String's chars, so every lookup agrees with String.hashCode
+        private static int mix(int h) { return h ^ (h >>> 16); }
+    }
+
+    /* =============================
+       METRICS
+       ============================= */
+    /** Process-wide counters and gauges, rendered as plain text on /metrics. */
+    public static final class Metrics {
+        private static final ConcurrentHashMap<String, LongAdder> COUNTERS = new ConcurrentHashMap<>();
+        private static final ConcurrentHashMap<String, AtomicLong> GAUGES = new ConcurrentHashMap<>();
+
+        private Metrics() { }
+
+        public static void increment(String name) { add(name, 1); }
+
+        public static void add(String name, long delta) {
+            counter(name).add(delta);
+        }
+
+        // hot paths keep the adder instead of looking it up per event
+        public static LongAdder counter(String name) {
+            return COUNTERS.computeIfAbsent(name, k -> new LongAdder());
+        }
+
+        public static void set(String name, long value) {
+            GAUGES.computeIfAbsent(name, k -> new AtomicLong()).set(value);
+        }
+
+        public static long get(String name) {
+            LongAdder c = COUNTERS.get(name);
+            if (c != null) return c.sum();
+            AtomicLong g = GAUGES.get(name);
+            return g == null ? 0 : g.get();
+        }
+
+        public static String render() {
+            TreeMap<String, Long> all = new TreeMap<>();
+            COUNTERS.forEach((k, v) -> all.put(k, v.sum()));
+            GAUGES.forEach((k, v) -> all.put(k, v.get()));
+            StringBuilder sb = new StringBuilder();
+            all.forEach((k, v) -> sb.append(k).append(' ').append(v).append('\n'));
+            return sb.toString();
+        }
+    }
+
     /* =============================
        DAO LAYER
        ============================= */
@@ -223,22 +848,23 @@ public class JavaWebAppSingleFile {
                             rs.getInt("id"),
                             rs.getString("symbol"),
                             rs.getString("name"),
-                            rs.getDouble("price")));
+                            rs.getLong("price")));
                 }
             }
             return list;
         }
 
-        // Transaction example
-        public void updatePriceTransactional(int id, double price) throws SQLException {
+        // Transaction example; returns the number of rows committed
+        public int updatePriceTransactional(int id, long price) throws SQLException {
             Connection c = ds.getConnection();
             try (PreparedStatement ps =
                      c.prepareStatement("UPDATE stocks SET price=? WHERE id=?")) {
                 c.setAutoCommit(false);
-                ps.setDouble(1, price);
+                ps.setLong(1, price);
                 ps.setInt(2, id);
-                ps.executeUpdate();
+                int n = ps.executeUpdate();
                 c.commit();
+                return n;
             } catch (SQLException e) {
                 c.rollback();
                 throw e;
@@ -246,137 +872,5044 @@ public class JavaWebAppSingleFile {
                 c.close();
             }
         }
-    }
 
-    /* =============================
-       SERVICE LAYER
-       ============================= */
+        /**
+         * Applies all updates in one transaction, sent as JDBC batches of
+         * chunk rows. Returns the rows updated per entry.
+         */
+        public int[] updatePricesBatch(int[] ids, long[] prices, int count, int chunk) throws SQLException {
+            int[] counts = new int[count];
+            Connection c = ds.getConnection();
+            try (PreparedStatement ps =
+                     c.prepareStatement("UPDATE stocks SET price=? WHERE id=?")) {
+                c.setAutoCommit(false);
+                int from = 0;
+                for (int i = 0; i < count; i++) {
+                    ps.setLong(1, prices[i]);
+                    ps.setInt(2, ids[i]);
+                    ps.addBatch();
+                    if (i - from + 1 == chunk || i == count - 1) {
+                        int[] n = ps.executeBatch();
+                        System.arraycopy(n, 0, counts, from, n.length);
+                        from = i + 1;
+                    }
+                }
+                c.commit();
+                return counts;
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.close();
+            }
+        }
+    }
 
-    public static class UserService {
-        private final UserDAO dao;
+    public static class TradeDAO {
+        private final DataSource ds;
+        public TradeDAO(DataSource ds) { this.ds = ds; }
 
-        // production
-        public UserService(DataSource ds) {
-            this.dao = new UserDAO(ds);
+        /** Journal position {segment, offset} the projector last committed for a shard. */
+        public long[] loadCursor(int shard) throws SQLException {
+            try (Connection c = ds.getConnection();
+                 PreparedStatement ps =
+                     c.prepareStatement("SELECT segment, pos FROM journal_cursor WHERE shard=?")) {
+                ps.setInt(1, shard);
+                try (ResultSet rs = ps.executeQuery()) {
+                    if (rs.next()) return new long[] { rs.getLong(1), rs.getInt(2) };
+                }
+            }
+            return new long[] { 0, 0 };
         }
 
-        // REVIEW-2: constructor injection for unit tests
-        UserService(UserDAO dao) {
-            this.dao = dao;
+        // Trades, last prices and the new cursor land in one transaction, so replay is exactly-once
+        public void insertProjected(int shard, long segment, int pos, List<Trade> trades) throws SQLException {
+            Connection c = ds.getConnection();
+            try (PreparedStatement ins = c.prepareStatement(
+                     "INSERT INTO trades(symbol,price,qty,buy_order,sell_order,buyer_id,seller_id,trade_time)"
+                     + " VALUES(?,?,?,?,?,?,?,?)", new String[] { "ID" });
+                 PreparedStatement px =
+                     c.prepareStatement("UPDATE stocks SET price=? WHERE symbol=?");
+                 PreparedStatement cur = c.prepareStatement(
+                     "MERGE INTO journal_cursor(shard,segment,pos) KEY(shard) VALUES(?,?,?)")) {
+                c.setAutoCommit(false);
+                Map<String, Long> last = new HashMap<>();
+                for (Trade t : trades) {
+                    ins.setString(1, t.symbol);
+                    ins.setLong(2, t.price);
+                    ins.setLong(3, t.qty);
+                    ins.setLong(4, t.buyOrder);
+                    ins.setLong(5, t.sellOrder);
+                    ins.setInt(6, t.buyerId);
+                    ins.setInt(7, t.sellerId);
+                    ins.setTimestamp(8, new Timestamp(t.time));
+                    ins.addBatch();
+                    last.put(t.symbol, t.price);
+                }
+                if (!trades.isEmpty()) {
+                    ins.executeBatch();
+                    try (ResultSet keys = ins.getGeneratedKeys()) {
+                        for (int i = 0; i < trades.size() && keys.next(); i++) trades.get(i).id = keys.getLong(1);
+                    }
+                }
+                for (Map.Entry<String, Long> e : last.entrySet()) {
+                    px.setLong(1, e.getValue());
+                    px.setString(2, e.getKey());
+                    px.addBatch();
+                }
+                if (!last.isEmpty()) px.executeBatch();
+                cur.setInt(1, shard);
+                cur.setLong(2, segment);
+                cur.setInt(3, pos);
+                cur.executeUpdate();
+                c.commit();
+            } catch (SQLException e) {
+                c.rollback();
+                throw e;
+            } finally {
+                c.close();
+            }
         }
 
-        public Optional<User> authenticate(String u, String p) throws SQLException {
-            Optional<User> opt = dao.findByUsername(u);
-            if (opt.isPresent() && passwordMatches(p, opt.get().getPassword())) {
-                return opt;
+        /** Streams every trade with id > afterId in id order. */
+        public void forEachAfter(long afterId, Consumer<Trade> each) throws SQLException {
+            try (Connection c = ds.getConnection();
+                 PreparedStatement ps = c.prepareStatement(
+                     "SELECT id,symbol,price,qty,buy_order,sell_order,buyer_id,seller_id,trade_time"
+                     + " FROM trades WHERE id>? ORDER BY id")) {
+                ps.setLong(1, afterId);
+                ps.setFetchSize(1_000);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        Trade t = new Trade(rs.getString(2), rs.getLong(3), rs.getLong(4), rs.getLong(5),
+                                rs.getLong(6), rs.getInt(7), rs.getInt(8), rs.getTimestamp(9).getTime());
+                        t.id = rs.getLong(1);
+                        each.accept(t);
+                    }
+                }
             }
-            return Optional.empty();
         }
 
-        // REVIEW-2: isolated logic for testing
-        boolean passwordMatches(String plain, String hashed) {
-            return BCrypt.checkpw(plain, hashed);
+        /** One row of a user's trade history; buy is the side the user was on. */
+        interface HistoryVisitor {
+            void trade(long id, long time, String symbol, boolean buy, long price, long qty) throws IOException;
         }
-    }
 
-    public static class StockService {
-        private final StockDAO dao;
-        public StockService(DataSource ds) { dao = new StockDAO(ds); }
-        public List<Stock> getAllStocks() throws SQLException { return dao.findAll(); }
-        public void updatePrice(int id, double p) throws SQLException {
-            dao.updatePriceTransactional(id, p);
-        }
-    }
+        // Each side reads its own index range newest-first, so a page costs limit rows however deep it is
+        private static final String HISTORY_SQL =
+                "SELECT id,trade_time,symbol,buy,price,qty FROM ("
+                + "(SELECT id,trade_time,symbol,TRUE buy,price,qty FROM trades"
+                + " WHERE buyer_id=? AND trade_time<=? AND (trade_time<? OR id<?)"
+                + " ORDER BY buyer_id, trade_time DESC, id DESC LIMIT ?)"
+                + " UNION ALL "
+                + "(SELECT id,trade_time,symbol,FALSE buy,price,qty FROM trades"
+                + " WHERE seller_id=? AND trade_time<=? AND (trade_time<? OR id<?)"
+                + " ORDER BY seller_id, trade_time DESC, id DESC LIMIT ?)"
+                + ") ORDER BY trade_time DESC, id DESC LIMIT ?";
 
-    /* =============================
-       AUTH FILTER
-       ============================= */
-    public static class AuthFilter implements Filter {
-        public void doFilter(ServletRequest r, ServletResponse s, FilterChain c)
-                throws IOException, ServletException {
-            HttpServletRequest req = (HttpServletRequest) r;
-            HttpSession session = req.getSession(false);
-            if (req.getRequestURI().endsWith("/login") ||
-                req.getRequestURI().equals("/") ||
-                session != null) {
-                c.doFilter(r, s);
-            } else {
-                ((HttpServletResponse) s).sendRedirect("login");
+        /**
+         * Streams up to limit of the user's trades older than the keyset
+         * (beforeTime, beforeId), newest first, and returns how many were
+         * visited. Rows go to the visitor as they are read.
+         */
+        public int history(int userId, long beforeTime, long beforeId, int limit, HistoryVisitor v)
+                throws SQLException, IOException {
+            try (Connection c = ds.getConnection();
+                 PreparedStatement ps = c.prepareStatement(HISTORY_SQL)) {
+                Timestamp before = new Timestamp(beforeTime);
+                for (int side = 0, p = 1; side < 2; side++) {
+                    ps.setInt(p++, userId);
+                    ps.setTimestamp(p++, before);
+                    ps.setTimestamp(p++, before);
+                    ps.setLong(p++, beforeId);
+                    ps.setInt(p++, limit);
+                }
+                ps.setInt(11, limit);
+                ps.setFetchSize(Math.min(limit, 100));
+                int n = 0;
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        v.trade(rs.getLong(1), rs.getTimestamp(2).getTime(), rs.getString(3), rs.getBoolean(4),
+                                rs.getLong(5), rs.getLong(6));
+                        n++;
+                    }
+                }
+                return n;
             }
         }
     }
 
-    /* =============================
-       SERVLETS
-       ============================= */
-    public static class HomeServlet extends HttpServlet {
-        protected void doGet(HttpServletRequest r, HttpServletResponse s)
-                throws IOException {
-            HttpSession sess = r.getSession(false);
-            s.sendRedirect(sess == null ? "login" : "stocks");
-        }
-    }
+    public static class LedgerDAO {
+        private final DataSource ds;
+        public LedgerDAO(DataSource ds) { this.ds = ds; }
 
-    public static class LoginServlet extends HttpServlet {
-        private UserService service;
-        public void init() { service = new UserService(ds); }
+        /** Highest trade id whose effects are all in the accounts and positions tables. */
+        public long loadCursor() throws SQLException {
+            try (Connection c = ds.getConnection();
+                 PreparedStatement ps = c.prepareStatement("SELECT trade_id FROM ledger_cursor WHERE id=0");
+                 ResultSet rs = ps.executeQuery()) {
+                return rs.next() ? rs.getLong(1) : 0;
+            }
+        }
 
-        protected void doGet(HttpServletRequest r, HttpServletResponse s)
-                throws IOException {
-            s.setContentType("text/html");
-            s.getWriter().println("""
-                <form method='post'>
-                  Username: <input name='username'/><br/>
-                  Password: <input type='password' name='password'/><br/>
-                  <button>Login</button>
-                  <p>Demo: student / student123</p>
-                </form>
-            """);
+        // positions of symbols no longer listed are left in the table but not loaded
+        public List<Portfolio> loadAll(SymbolRegistry symbols) throws SQLException {
+            List<Portfolio> all = new ArrayList<>();
+            try (Connection c = ds.getConnection();
+                 PreparedStatement acc = c.prepareStatement(
+                     "SELECT user_id,cash,seq,last_trade FROM accounts ORDER BY user_id");
+                 PreparedStatement pos = c.prepareStatement(
+                     "SELECT user_id,symbol,qty,cost FROM positions ORDER BY user_id");
+                 ResultSet a = acc.executeQuery();
+                 ResultSet p = pos.executeQuery()) {
+                boolean more = p.next();
+                while (a.next()) {
+                    int user = a.getInt(1);
+                    int n = 0;
+                    int[] ids = new int[4];
+                    long[] qty = new long[4], cost = new long[4];
+                    for (; more && p.getInt(1) <= user; more = p.next()) {
+                        int id = symbols.id(p.getString(2));
+                        if (p.getInt(1) < user || id < 0) continue;
+                        if (n == ids.length) {
+                            ids = Arrays.copyOf(ids, n * 2);
+                            qty = Arrays.copyOf(qty, n * 2);
+                            cost = Arrays.copyOf(cost, n * 2);
+                        }
+                        ids[n] = id; qty[n] = p.getLong(3); cost[n++] = p.getLong(4);
+                    }
+                    all.add(new Portfolio(user, a.getLong(3), a.getLong(4), a.getLong(2),
+                            Arrays.copyOf(ids, n), Arrays.copyOf(qty, n), Arrays.copyOf(cost, n)));
+                }
+            }
+            return all;
         }
 
-        protected void doPost(HttpServletRequest r, HttpServletResponse s)
-                throws IOException {
-            try {
-                Optional<User> u =
-                        service.authenticate(
-                                r.getParameter("username"),
-                                r.getParameter("password"));
-                if (u.isPresent()) {
-                    r.getSession(true).setAttribute("user", u.get());
-                    s.sendRedirect("stocks");
-                } else {
-                    s.getWriter().println("Invalid credentials");
+        // changed accounts and the cursor they cover, in one transaction
+        public void save(List<Portfolio> changed, long cursor, SymbolRegistry symbols) throws SQLException {
+            Connection c = ds.getConnection();
+            try (PreparedStatement acc = c.prepareStatement(
+                     "MERGE INTO accounts(user_id,cash,seq,last_trade) KEY(user_id) VALUES(?,?,?,?)");
+                 PreparedStatement pos = c.prepareStatement(
+                     "MERGE INTO positions(user_id,symbol,qty,cost) KEY(user_id,symbol) VALUES(?,?,?,?)");
+                 PreparedStatement cur = c.prepareStatement(
+                     "MERGE INTO ledger_cursor(id,trade_id) KEY(id) VALUES(0,?)")) {
+                c.setAutoCommit(false);
+                for (Portfolio p : changed) {
+                    acc.setInt(1, p.userId);
+                    acc.setLong(2, p.cash);
+                    acc.setLong(3, p.seq);
+                    acc.setLong(4, p.lastTrade);
+                    acc.addBatch();
+                    for (int i = 0; i < p.symbols.length; i++) {
+                        pos.setInt(1, p.userId);
+                        pos.setString(2, symbols.symbol(p.symbols[i]));
+                        pos.setLong(3, p.qty[i]);
+                        pos.setLong(4, p.cost[i]);
+                        pos.addBatch();
+                    }
+                }
+                if (!changed.isEmpty()) {
+                    acc.executeBatch();
+                    pos.executeBatch();
                 }
+                cur.setLong(1, cursor);
+                cur.executeUpdate();
+                c.commit();
             } catch (SQLException e) {
-                throw new RuntimeException(e);
+                c.rollback();
+                throw e;
+            } finally {
+                c.close();
             }
         }
     }
 
-    public static class StocksServlet extends HttpServlet {
-        private StockService service;
-        public void init() { service = new StockService(ds); }
+    public static class CandleDAO {
+        private final DataSource ds;
+        public CandleDAO(DataSource ds) { this.ds = ds; }
 
-        protected void doGet(HttpServletRequest r, HttpServletResponse s)
-                throws IOException {
-            try {
-                s.setContentType("text/html");
-                for (Stock st : service.getAllStocks()) {
-                    s.getWriter().println(
-                            st.symbol + " : " + st.price + "<br/>");
+        // bars as written by CandleEngine: n records of {slot, start, o, h, l, c, v}, prices in ticks
+        public void mergeBatch(SymbolRegistry symbols, long[] bars, int n) throws SQLException {
+            Connection c = ds.getConnection();
+            try (PreparedStatement ps = c.prepareStatement(
+                     "MERGE INTO candles(symbol,period,start_time,open,high,low,close,volume)"
+                     + " KEY(symbol,period,start_time) VALUES(?,?,?,?,?,?,?,?)")) {
+                c.setAutoCommit(false);
+                for (int i = 0; i < n; i++) {
+                    int at = i * 7;
+                    ps.setString(1, symbols.symbol(CandleEngine.symbolOf(bars[at])));
+                    ps.setString(2, CandleEngine.periodOf(bars[at]));
+                    ps.setLong(3, bars[at + 1]);
+                    ps.setLong(4, bars[at + 2]);
+                    ps.setLong(5, bars[at + 3]);
+                    ps.setLong(6, bars[at + 4]);
+                    ps.setLong(7, bars[at + 5]);
+                    ps.setLong(8, bars[at + 6]);
+                    ps.addBatch();
                 }
-                s.getWriter().println("<a href='logout'>Logout</a>");
+                ps.executeBatch();
+                c.commit();
             } catch (SQLException e) {
-                throw new RuntimeException(e);
+                c.rollback();
+                throw e;
+            } finally {
+                c.close();
             }
         }
+
+        /** Most recent closed bars, oldest first, as {start, o, h, l, c, v} with prices in ticks. */
+        public List<long[]> findRecent(String symbol, String period, int limit) throws SQLException {
+            List<long[]> bars = new ArrayList<>();
+            try (Connection c = ds.getConnection();
+                 PreparedStatement ps = c.prepareStatement(
+                     "SELECT start_time,open,high,low,close,volume FROM candles"
+                     + " WHERE symbol=? AND period=? ORDER BY start_time DESC LIMIT ?")) {
+                ps.setString(1, symbol);
+                ps.setString(2, period);
+                ps.setInt(3, limit);
+                try (ResultSet rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        bars.add(new long[] { rs.getLong(1), rs.getLong(2), rs.getLong(3),
+                                rs.getLong(4), rs.getLong(5), rs.getLong(6) });
+                    }
+                }
+            }
+            Collections.reverse(bars);
+            return bars;
+        }
+    }
+
+    /* =============================
+       MATCHING ENGINE
+       ============================= */
+    // Prices are integer ticks (cents) everywhere, from the stocks table to the book, so they compare as longs
+    static final long PRICE_SCALE = 100;
+
+    static final long BAD_PRICE = -1;
+
+    /**
+     * Parses the decimal price in b[from, to), such as "175.1", straight
+     * into ticks, rounding half up past the cents; no double is involved.
+     * Returns BAD_PRICE unless the whole range is digits with at most one
+     * point, or when the price does not fit in a long of ticks. TickParser
+     * and every String price go through here.
+     */
+    static long parseTicks(byte[] b, int from, int to) {
+        long whole = 0, frac = 0;
+        int fracDigits = 0, p = from;
+        boolean any = false;
+        for (; p < to && b[p] >= '0' && b[p] <= '9'; p++, any = true) {
+            if (whole > Long.MAX_VALUE / (10 * PRICE_SCALE)) return BAD_PRICE;
+            whole = whole * 10 + (b[p] - '0');
+        }
+        if (p < to && b[p] == '.') {
+            for (p++; p < to && b[p] >= '0' && b[p] <= '9'; p++, any = true) {
+                if (fracDigits < 3) { frac = frac * 10 + (b[p] - '0'); fracDigits++; }
+            }
+        }
+        if (!any || p != to) return BAD_PRICE;
+        // scale to 3 digits, then round half up to cents
+        while (fracDigits++ < 3) frac *= 10;
+        return whole * PRICE_SCALE + (frac + 5) / 10;
+    }
+
+    static long parseTicks(CharSequence s) {
+        // anything outside Latin-1 becomes '?', which is not a price either
+        byte[] b = s.toString().getBytes(StandardCharsets.ISO_8859_1);
+        long ticks = parseTicks(b, 0, b.length);
+        if (ticks == BAD_PRICE) throw new NumberFormatException("Invalid price: " + s);
+        return ticks;
+    }
+
+    static String formatTicks(long ticks) {
+        long abs = Math.abs(ticks), cents = abs % PRICE_SCALE;
+        return (ticks < 0 ? "-" : "") + abs / PRICE_SCALE + (cents < 10 ? ".0" : ".") + cents;
+    }
+
+    public static final byte BUY = 0, SELL = 1;
+    public static final byte LIMIT = 0, MARKET = 1;
+
+    public enum OrderStatus { FILLED, PARTIALLY_FILLED, RESTING, CANCELLED, REJECTED }
+
+    /** Visits one resting order of a book, e.g. to reserve it again after recovery. */
+    interface RestingOrderVisitor {
+        void visit(long orderId, int userId, byte side, long price, long remaining);
+    }
+
+    /** Receives every execution produced by an {@link OrderBook}; called on the matching thread. */
+    public interface TradeSink {
+        void onTrade(long makerId, int makerUser, long takerId, int takerUser,
+                     byte takerSide, long price, long qty);
+    }
+
+    // Pooled resting order, linked into its price level (FIFO = time priority)
+    static final class Order {
+        long id; int userId; byte side; long price; long remaining;
+        Order prev, next;
+        PriceLevel level;
+    }
+
+    static final class PriceLevel {
+        long price; long totalQty;
+        Order head, tail;
+        PriceLevel nextFree;
+    }
+
+    static final class OrderPool {
+        private Order[] free = new Order[1024];
+        private int size;
+
+        Order acquire() { return size == 0 ? new Order() : free[--size]; }
+
+        void release(Order o) {
+            o.prev = o.next = null; o.level = null;
+            if (size == free.length) free = Arrays.copyOf(free, size * 2);
+            free[size++] = o;
+        }
+    }
+
+    /** Open-addressing long -> Order map (key 0 is reserved as empty). */
+    static final class OrderIndex {
+        private long[] keys = new long[1024];
+        private Order[] vals = new Order[1024];
+        private int size;
+
+        private static int hash(long k, int mask) {
+            return (int) ((k * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+        Order get(long k) {
+            int mask = keys.length - 1;
+            for (int i = hash(k, mask); keys[i] != 0; i = (i + 1) & mask) {
+                if (keys[i] == k) return vals[i];
+            }
+            return null;
+        }
+
+        void put(long k, Order v) {
+            if ((size + 1) * 2 > keys.length) grow();
+            int mask = keys.length - 1;
+            int i = hash(k, mask);
+            while (keys[i] != 0 && keys[i] != k) i = (i + 1) & mask;
+            if (keys[i] == 0) size++;
+            keys[i] = k; vals[i] = v;
+        }
+
+        int size() { return size; }
+
+        Order remove(long k) {
+            int mask = keys.length - 1;
+            int i = hash(k, mask);
+            while (keys[i] != k) {
+                if (keys[i] == 0) return null;
+                i = (i + 1) & mask;
+            }
+            Order v = vals[i];
+            // backward-shift deletion keeps probe chains intact without tombstones
+            for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+                int h = hash(keys[j], mask);
+                if (((j - h) & mask) >= ((j - i) & mask)) {
+                    keys[i] = keys[j]; vals[i] = vals[j]; i = j;
+                }
+            }
+            keys[i] = 0; vals[i] = null; size--;
+            return v;
+        }
+
+        private void grow() {
+            long[] ok = keys; Order[] ov = vals;
+            keys = new long[ok.length * 2]; vals = new Order[ok.length * 2]; size = 0;
+            for (int i = 0; i < ok.length; i++) if (ok[i] != 0) put(ok[i], ov[i]);
+        }
+    }
+
+    /** One side of a book: price levels kept in a sorted long[] from worst to best. */
+    static final class BookSide {
+        private final boolean bids;
+        private long[] prices = new long[64];
+        private PriceLevel[] levels = new PriceLevel[64];
+        private int size;
+        private PriceLevel freeLevels;
+
+        BookSide(boolean bids) { this.bids = bids; }
+
+        boolean better(long a, long b) { return bids ? a > b : a < b; }
+
+        PriceLevel best() { return size == 0 ? null : levels[size - 1]; }
+
+        int levelCount() { return size; }
+
+        PriceLevel levelAt(int i) { return levels[i]; }
+
+        // index of price, or -(insertion point) - 1
+        private int find(long price) {
+            int lo = 0, hi = size - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long p = prices[mid];
+                if (p == price) return mid;
+                if (better(p, price)) hi = mid - 1; else lo = mid + 1;
+            }
+            return -(lo + 1);
+        }
+
+        PriceLevel levelFor(long price) {
+            int i = find(price);
+            if (i >= 0) return levels[i];
+            i = -i - 1;
+            if (size == prices.length) {
+                prices = Arrays.copyOf(prices, size * 2);
+                levels = Arrays.copyOf(levels, size * 2);
+            }
+            System.arraycopy(prices, i, prices, i + 1, size - i);
+            System.arraycopy(levels, i, levels, i + 1, size - i);
+            PriceLevel lvl = freeLevels;
+            if (lvl != null) freeLevels = lvl.nextFree; else lvl = new PriceLevel();
+            lvl.nextFree = null; lvl.price = price; lvl.totalQty = 0;
+            prices[i] = price; levels[i] = lvl; size++;
+            return lvl;
+        }
+
+        void removeLevel(PriceLevel lvl) {
+            int i = find(lvl.price);
+            System.arraycopy(prices, i + 1, prices, i, size - i - 1);
+            System.arraycopy(levels, i + 1, levels, i, size - i - 1);
+            levels[--size] = null;
+            lvl.head = lvl.tail = null;
+            lvl.nextFree = freeLevels; freeLevels = lvl;
+        }
+    }
+
+    /**
+     * Price-time priority limit order book for one symbol. Not thread-safe:
+     * every call for a given book must come from the same thread (or lock).
+     *
+     * Self-trade prevention cancels the incoming order: when it reaches a
+     * resting order of the same user, matching stops there, fills already
+     * made against other users stand and the remainder is cancelled rather
+     * than rested. The resting order is left untouched. The outcome depends
+     * only on the book, so journal replay reproduces it.
+     */
+    public static final class OrderBook {
+        final String symbol;
+        final byte[] symbolBytes;
+        final BookSide bids = new BookSide(true);
+        final BookSide asks = new BookSide(false);
+        final OrderIndex index = new OrderIndex();
+        private final OrderPool pool = new OrderPool();
+        private long lastTradePrice;
+        private long tradeCount;
+        private boolean selfTrade;
+
+        public OrderBook(String symbol) {
+            this.symbol = symbol;
+            this.symbolBytes = symbol.getBytes(StandardCharsets.US_ASCII);
+        }
+
+        public long lastTradePrice() { return lastTradePrice; }
+        public long tradeCount() { return tradeCount; }
+
+        /** Whether the last submit stopped at the user's own resting order and dropped its remainder. */
+        public boolean selfTradePrevented() { return selfTrade; }
+
+        /** Matches the incoming order and rests any limit remainder; returns the filled quantity. */
+        public long submit(long id, int userId, byte side, byte type, long limit, long qty, TradeSink sink) {
+            BookSide opposite = side == BUY ? asks : bids;
+            long remaining = qty;
+            selfTrade = false;
+            PriceLevel lvl;
+            while (remaining > 0 && !selfTrade && (lvl = opposite.best()) != null) {
+                if (type == LIMIT && opposite.better(limit, lvl.price)) break;
+                Order maker = lvl.head;
+                while (maker != null && remaining > 0) {
+                    if (maker.userId == userId) {
+                        selfTrade = true;
+                        break;
+                    }
+                    long q = Math.min(remaining, maker.remaining);
+                    maker.remaining -= q;
+                    lvl.totalQty -= q;
+                    remaining -= q;
+                    lastTradePrice = lvl.price;
+                    tradeCount++;
+                    sink.onTrade(maker.id, maker.userId, id, userId, side, lvl.price, q);
+                    Order next = maker.next;
+                    if (maker.remaining == 0) {
+                        unlink(maker);
+                        index.remove(maker.id);
+                        pool.release(maker);
+                    }
+                    maker = next;
+                }
+                if (lvl.head == null) opposite.removeLevel(lvl);
+            }
+            if (remaining > 0 && type == LIMIT && !selfTrade) rest(id, userId, side, limit, remaining);
+            return qty - remaining;
+        }
+
+        /** Cancels a resting order owned by userId; returns the cancelled quantity or 0. */
+        public long cancel(long id, int userId) {
+            Order o = index.get(id);
+            if (o == null || o.userId != userId) return 0;
+            index.remove(id);
+            long qty = o.remaining;
+            PriceLevel lvl = o.level;
+            lvl.totalQty -= qty;
+            unlink(o);
+            if (lvl.head == null) (o.side == BUY ? bids : asks).removeLevel(lvl);
+            pool.release(o);
+            return qty;
+        }
+
+        void rest(long id, int userId, byte side, long price, long qty) {
+            Order o = pool.acquire();
+            o.id = id; o.userId = userId; o.side = side; o.price = price; o.remaining = qty;
+            PriceLevel lvl = (side == BUY ? bids : asks).levelFor(price);
+            o.level = lvl;
+            o.prev = lvl.tail;
+            if (lvl.tail == null) lvl.head = o; else lvl.tail.next = o;
+            lvl.tail = o;
+            lvl.totalQty += qty;
+            index.put(id, o);
+        }
+
+        void forEachResting(RestingOrderVisitor v) {
+            for (BookSide side : new BookSide[] { bids, asks }) {
+                for (int i = 0; i < side.levelCount(); i++) {
+                    for (Order o = side.levelAt(i).head; o != null; o = o.next) {
+                        v.visit(o.id, o.userId, o.side, o.price, o.remaining);
+                    }
+                }
+            }
+        }
+
+        /** Writes resting orders level by level in time priority, plus the last trade. */
+        void writeTo(DataOutput out) throws IOException {
+            out.writeUTF(symbol);
+            out.writeLong(lastTradePrice);
+            out.writeLong(tradeCount);
+            for (BookSide side : new BookSide[] { bids, asks }) {
+                out.writeInt(side.levelCount());
+                for (int i = 0; i < side.levelCount(); i++) {
+                    PriceLevel lvl = side.levelAt(i);
+                    int n = 0;
+                    for (Order o = lvl.head; o != null; o = o.next) n++;
+                    out.writeLong(lvl.price);
+                    out.writeInt(n);
+                    for (Order o = lvl.head; o != null; o = o.next) {
+                        out.writeLong(o.id);
+                        out.writeInt(o.userId);
+                        out.writeLong(o.remaining);
+                    }
+                }
+            }
+        }
+
+        /** Restores the state written by writeTo (after the symbol) into an empty book. */
+        void readFrom(DataInput in) throws IOException {
+            lastTradePrice = in.readLong();
+            tradeCount = in.readLong();
+            for (byte side : new byte[] { BUY, SELL }) {
+                int levels = in.readInt();
+                for (int i = 0; i < levels; i++) {
+                    long price = in.readLong();
+                    int n = in.readInt();
+                    for (int j = 0; j < n; j++) {
+                        rest(in.readLong(), in.readInt(), side, price, in.readLong());
+                    }
+                }
+            }
+        }
+
+        private static void unlink(Order o) {
+            PriceLevel lvl = o.level;
+            if (o.prev == null) lvl.head = o.next; else o.prev.next = o.next;
+            if (o.next == null) lvl.tail = o.prev; else o.next.prev = o.prev;
+        }
+    }
+
+    public static final class OrderResult {
+        public final long orderId;
+        public final OrderStatus status;
+        public final long filledQty;
+        public final long openQty;
+        public final long lastPrice; // ticks
+        public final String reason;  // failed pre-trade check, for rejections
+
+        OrderResult(long orderId, OrderStatus status, long filledQty, long openQty, long lastPrice) {
+            this(orderId, status, filledQty, openQty, lastPrice, null);
+        }
+
+        OrderResult(long orderId, OrderStatus status, long filledQty, long openQty, long lastPrice, String reason) {
+            this.orderId = orderId; this.status = status;
+            this.filledQty = filledQty; this.openQty = openQty; this.lastPrice = lastPrice;
+            this.reason = reason;
+        }
+
+        static OrderResult of(long orderId, byte type, long qty, long filled, long lastTicks, boolean selfTrade) {
+            long open = type == LIMIT && !selfTrade ? qty - filled : 0;
+            OrderStatus status = filled == qty ? OrderStatus.FILLED
+                    : open > 0 ? (filled > 0 ? OrderStatus.PARTIALLY_FILLED : OrderStatus.RESTING)
+                    : OrderStatus.CANCELLED;
+            return new OrderResult(orderId, status, filled, open, filled > 0 ? lastTicks : 0,
+                    selfTrade && filled < qty ? "selfTrade" : null);
+        }
+
+        static OrderResult rejected() { return new OrderResult(0, OrderStatus.REJECTED, 0, 0, 0); }
+
+        static OrderResult rejected(String reason) { return new OrderResult(0, OrderStatus.REJECTED, 0, 0, 0, reason); }
+
+        @Override public String toString() {
+            return "order " + orderId + " " + status + " filled=" + filledQty
+                    + " open=" + openQty + (filledQty > 0 ? " last=" + formatTicks(lastPrice) : "")
+                    + (reason != null ? " reason=" + reason : "");
+        }
+    }
+
+    /* =============================
+       JOURNAL
+       ============================= */
+    /**
+     * Append-only binary event log for one matching shard, written through
+     * memory-mapped segment files. Each record is [int len][byte type][body];
+     * the length is written last, so a zero length marks the end of data.
+     */
+    static final class Journal implements Closeable {
+        static final byte ORDER = 1, CANCEL = 2, TRADE = 3;
+
+        private final Path dir;
+        private final int shard;
+        private final int segmentBytes;
+        private final boolean fsync;
+        private FileChannel channel;
+        private MappedByteBuffer buf;
+        private long segment = -1;
+        private int pos;
+        private int flushedPos;
+        // (segment << 32 | offset) of the last group commit, read by the projector
+        private volatile long committed;
+
+        Journal(Path dir, int shard, int segmentBytes, boolean fsync) throws IOException {
+            this.dir = dir;
+            this.shard = shard;
+            this.segmentBytes = segmentBytes;
+            this.fsync = fsync;
+            Files.createDirectories(dir);
+        }
+
+        static long position(long segment, int offset) { return segment << 32 | offset; }
+
+        long committedPosition() { return committed; }
+
+        Path segmentPath(long seg) { return segmentPath(dir, shard, seg); }
+
+        static Path segmentPath(Path dir, int shard, long seg) {
+            return dir.resolve(String.format("shard-%d-%08d.log", shard, seg));
+        }
+
+        /**
+         * Visits every record from the given position, then leaves the writer
+         * positioned after the last one; returns the number of records read.
+         */
+        int replay(long fromSegment, int fromOffset, JournalVisitor visitor) throws IOException {
+            JournalCursor cursor = new JournalCursor(dir, shard, fromSegment, fromOffset);
+            int n;
+            try {
+                n = cursor.readTo(Long.MAX_VALUE, Integer.MAX_VALUE, visitor);
+            } finally {
+                cursor.close();
+            }
+            openSegment(cursor.segment(), cursor.offset());
+            committed = position(segment, pos);
+            return n;
+        }
+
+        /** Deletes whole segments older than the given one. */
+        void pruneBefore(long keepFrom) throws IOException {
+            for (long seg = keepFrom - 1; seg >= 0; seg--) {
+                if (!Files.deleteIfExists(segmentPath(seg))) break;
+            }
+        }
+
+        void appendOrder(byte[] symbol, long orderId, int userId, byte side, byte type,
+                         long price, long qty, long timestamp) throws IOException {
+            int at = reserve(1 + 8 + 4 + 1 + 1 + 8 + 8 + 8 + 2 + symbol.length);
+            buf.put(ORDER).putLong(orderId).putInt(userId).put(side).put(type)
+               .putLong(price).putLong(qty).putLong(timestamp);
+            putSymbol(symbol);
+            seal(at);
+        }
+
+        void appendCancel(byte[] symbol, long orderId, int userId, long timestamp) throws IOException {
+            int at = reserve(1 + 8 + 4 + 8 + 2 + symbol.length);
+            buf.put(CANCEL).putLong(orderId).putInt(userId).putLong(timestamp);
+            putSymbol(symbol);
+            seal(at);
+        }
+
+        void appendTrade(byte[] symbol, long makerId, int makerUser, long takerId, int takerUser,
+                         byte takerSide, long price, long qty, long timestamp) throws IOException {
+            int at = reserve(1 + 8 + 4 + 8 + 4 + 1 + 8 + 8 + 8 + 2 + symbol.length);
+            buf.put(TRADE).putLong(makerId).putInt(makerUser).putLong(takerId).putInt(takerUser)
+               .put(takerSide).putLong(price).putLong(qty).putLong(timestamp);
+            putSymbol(symbol);
+            seal(at);
+        }
+
+        /** Group commit: one force() for everything appended since the previous call. */
+        void commit() {
+            if (pos == flushedPos) return;
+            if (fsync) buf.force(flushedPos, pos - flushedPos);
+            flushedPos = pos;
+            committed = position(segment, pos);
+        }
+
+        private int reserve(int len) throws IOException {
+            if (pos + 4 + len + 4 > segmentBytes) {
+                commit();
+                openSegment(segment + 1, 0);
+            }
+            int at = pos;
+            buf.position(at + 4);
+            pos = at + 4 + len;
+            return at;
+        }
+
+        private void putSymbol(byte[] symbol) {
+            buf.putShort((short) symbol.length).put(symbol);
+        }
+
+        private void seal(int at) { buf.putInt(at, pos - at - 4); }
+
+        private void openSegment(long seg, int offset) throws IOException {
+            close();
+            channel = FileChannel.open(segmentPath(seg),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+            segment = seg;
+            pos = flushedPos = offset;
+        }
+
+        public void close() throws IOException {
+            if (channel != null) {
+                commit();
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    interface JournalVisitor {
+        /** body is positioned just after the record type byte. */
+        void onRecord(byte type, ByteBuffer body) throws IOException;
+    }
+
+    /** Sequential read-only view over a shard's journal segments. */
+    static final class JournalCursor implements Closeable {
+        private final Path dir;
+        private final int shard;
+        private long segment;
+        private int offset;
+        private FileChannel channel;
+        private MappedByteBuffer buf;
+
+        JournalCursor(Path dir, int shard, long segment, int offset) {
+            this.dir = dir; this.shard = shard; this.segment = segment; this.offset = offset;
+        }
+
+        Path dir() { return dir; }
+        long segment() { return segment; }
+        int offset() { return offset; }
+
+        /** Reads at most max records up to (not past) the given journal position. */
+        int readTo(long limit, int max, JournalVisitor visitor) throws IOException {
+            int n = 0;
+            while (n < max && Journal.position(segment, offset) < limit) {
+                if (buf == null && !map()) break;
+                int len = offset + 4 <= buf.limit() ? buf.getInt(offset) : 0;
+                if (len == 0) {
+                    // end of data in this segment: advance only once the writer has moved on
+                    if (!Files.exists(Journal.segmentPath(dir, shard, segment + 1))) break;
+                    unmap();
+                    segment++;
+                    offset = 0;
+                    continue;
+                }
+                ByteBuffer body = buf.duplicate();
+                body.position(offset + 5).limit(offset + 4 + len);
+                visitor.onRecord(buf.get(offset + 4), body);
+                offset += 4 + len;
+                n++;
+            }
+            return n;
+        }
+
+        private boolean map() throws IOException {
+            Path p = Journal.segmentPath(dir, shard, segment);
+            if (!Files.exists(p)) return false;
+            channel = FileChannel.open(p, StandardOpenOption.READ);
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return true;
+        }
+
+        private void unmap() throws IOException {
+            if (channel != null) channel.close();
+            channel = null;
+            buf = null;
+        }
+
+        public void close() throws IOException { unmap(); }
+
+        static String readSymbol(ByteBuffer body) {
+            byte[] b = new byte[body.getShort()];
+            body.get(b);
+            return new String(b, StandardCharsets.US_ASCII);
+        }
+
+        // resolves the symbol in place, -1 when unknown; no String is created
+        static int readSymbolId(ByteBuffer body, SymbolRegistry symbols) {
+            int len = body.getShort(), from = body.position();
+            body.position(from + len);
+            return symbols.id(body, from, from + len);
+        }
+
+        // the registry's own String for a known symbol, a new one only for symbols no longer listed
+        static String readSymbol(ByteBuffer body, SymbolRegistry symbols) {
+            int from = body.position();
+            int id = readSymbolId(body, symbols);
+            if (id >= 0) return symbols.symbol(id);
+            body.position(from);
+            return readSymbol(body);
+        }
+    }
+
+    /* =============================
+       MATCHING SHARDS
+       ============================= */
+    /** Bounded lock-free multi-producer / single-consumer ring. */
+    static final class MpscRing<E> {
+        private final AtomicReferenceArray<E> slots;
+        private final int mask;
+        private final AtomicLong tail = new AtomicLong();
+        private final AtomicLong head = new AtomicLong();
+
+        MpscRing(int capacity) {
+            int cap = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            slots = new AtomicReferenceArray<>(cap);
+            mask = cap - 1;
+        }
+
+        boolean offer(E e) {
+            long t;
+            do {
+                t = tail.get();
+                if (t - head.get() > mask) return false;
+            } while (!tail.compareAndSet(t, t + 1));
+            slots.lazySet((int) t & mask, e);
+            return true;
+        }
+
+        // consumer thread only; null when empty or the next producer has not published yet
+        E poll() {
+            long h = head.get();
+            int i = (int) h & mask;
+            E e = slots.get(i);
+            if (e == null) return null;
+            slots.lazySet(i, null);
+            head.lazySet(h + 1);
+            return e;
+        }
+
+        boolean isEmpty() { return slots.get((int) head.get() & mask) == null; }
+
+        int size() { return (int) (tail.get() - head.get()); }
+    }
+
+    static final class OrderCommand {
+        static final byte SUBMIT = 0, CANCEL = 1;
+        final byte kind; final int symbol; final int userId;
+        final byte side, type; final long price, qty;
+        final long orderId;
+        final CompletableFuture<OrderResult> done = new CompletableFuture<>();
+
+        OrderCommand(byte kind, int symbol, int userId, byte side, byte type,
+                     long price, long qty, long orderId) {
+            this.kind = kind; this.symbol = symbol; this.userId = userId;
+            this.side = side; this.type = type; this.price = price; this.qty = qty;
+            this.orderId = orderId;
+        }
+    }
+
+    /**
+     * Single-writer matching loop. Every book lives on exactly one shard, so
+     * books are never shared between threads and need no locking. Each batch
+     * is journaled and group-committed before any of its futures complete.
+     */
+    static final class MatchingShard implements Runnable, TradeSink {
+        private static final int BATCH = 256;
+
+        final int index;
+        private final StockService service;
+        private final Journal journal;
+        private final MpscRing<OrderCommand> inbox;
+        private final SymbolRegistry symbols;
+        private final OrderBook[] books; // by symbol id, null for symbols of other shards
+        private int bookCount;
+        private final OrderCommand[] batch = new OrderCommand[BATCH];
+        private final OrderResult[] results = new OrderResult[BATCH];
+        private final OrderBook[] touched = new OrderBook[BATCH];
+        private final CompletableFuture<Long> recovered = new CompletableFuture<>();
+        private final Path snapshotFile;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private volatile boolean parked;
+        private OrderBook current;
+        private long now;
+        private boolean replaying;
+        private volatile long recoveredAt;
+        private long maxOrderId;
+        private long sinceSnapshot;
+        private long lastSnapshotAt = System.currentTimeMillis();
+
+        MatchingShard(int index, StockService service, SymbolRegistry symbols, Journal journal,
+                      Path snapshotDir, int queueCapacity) {
+            this.index = index;
+            this.service = service;
+            this.symbols = symbols;
+            this.books = new OrderBook[symbols.size()];
+            this.journal = journal;
+            this.snapshotFile = snapshotDir.resolve("shard-" + index + ".snap");
+            this.inbox = new MpscRing<>(queueCapacity);
+            this.thread = new Thread(this, "matching-" + index);
+            thread.setDaemon(true);
+        }
+
+        void addBook(int symbol) {
+            books[symbol] = new OrderBook(symbols.symbol(symbol));
+            bookCount++;
+        }
+
+        /** Starts the loop; the returned future completes with the highest replayed order id. */
+        CompletableFuture<Long> start() {
+            thread.start();
+            return recovered;
+        }
+
+        // Lets the loop finish its batch and write a final snapshot
+        void stop() throws InterruptedException {
+            running = false;
+            LockSupport.unpark(thread);
+            thread.join(10_000);
+        }
+
+        boolean offer(OrderCommand cmd) {
+            if (!inbox.offer(cmd)) return false;
+            if (parked) LockSupport.unpark(thread);
+            return true;
+        }
+
+        int queueDepth() { return inbox.size(); }
+
+        Journal journal() { return journal; }
+
+        /** Journal position up to which the recovered books already include every trade. */
+        long recoveredPosition() { return recoveredAt; }
+
+        public void run() {
+            try {
+                recovered.complete(recover());
+            } catch (Throwable e) {
+                recovered.completeExceptionally(e);
+                return;
+            }
+            int idleSpins = 0;
+            while (running) {
+                int n = 0;
+                OrderCommand cmd;
+                while (n < BATCH && (cmd = inbox.poll()) != null) batch[n++] = cmd;
+                if (n == 0) {
+                    if (++idleSpins < 100) { Thread.onSpinWait(); continue; }
+                    maybeSnapshot();
+                    parked = true;
+                    if (inbox.isEmpty()) LockSupport.parkNanos(1_000_000);
+                    parked = false;
+                    idleSpins = 0;
+                    continue;
+                }
+                idleSpins = 0;
+                now = System.currentTimeMillis();
+                int dirty = 0;
+                try {
+                    for (int i = 0; i < n; i++) {
+                        OrderCommand c = batch[i];
+                        OrderBook book = books[c.symbol];
+                        results[i] = process(c, book);
+                        if (c.kind == OrderCommand.SUBMIT && results[i].filledQty > 0 && !contains(touched, dirty, book)) {
+                            touched[dirty++] = book;
+                        }
+                    }
+                    journal.commit();
+                } catch (IOException | UncheckedIOException e) {
+                    // the books may now be ahead of the journal; stop accepting work
+                    System.err.println("Journal write failed on shard " + index + ": " + e);
+                    running = false;
+                    for (int i = 0; i < n; i++) batch[i].done.completeExceptionally(e);
+                    return;
+                }
+                // one copy-on-write publish per batch, however many trades it produced
+                for (int i = 0; i < dirty; i++) {
+                    service.publishTradePrice(touched[i].symbol, touched[i].lastTradePrice());
+                    touched[i] = null;
+                }
+                for (int i = 0; i < n; i++) {
+                    batch[i].done.complete(results[i]);
+                    batch[i] = null; results[i] = null;
+                }
+                sinceSnapshot += n;
+                if (sinceSnapshot >= SNAPSHOT_EVERY_ORDERS) maybeSnapshot();
+            }
+            sinceSnapshot = Math.max(sinceSnapshot, 1);
+            maybeSnapshot();
+        }
+
+        private void maybeSnapshot() {
+            if (sinceSnapshot == 0) return;
+            if (running && sinceSnapshot < SNAPSHOT_EVERY_ORDERS
+                    && System.currentTimeMillis() - lastSnapshotAt < SNAPSHOT_INTERVAL_MS) return;
+            try {
+                writeSnapshot();
+            } catch (IOException e) {
+                System.err.println("Snapshot failed on shard " + index + ": " + e);
+            }
+            sinceSnapshot = 0;
+            lastSnapshotAt = System.currentTimeMillis();
+        }
+
+        /**
+         * Compact binary image of every book on this shard, tagged with the
+         * journal position it covers. Written to a temp file and renamed so a
+         * crash never leaves a half-written snapshot behind.
+         */
+        private void writeSnapshot() throws IOException {
+            journal.commit();
+            long at = journal.committedPosition();
+            Files.createDirectories(snapshotFile.getParent());
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(at);
+                out.writeLong(maxOrderId);
+                out.writeInt(bookCount);
+                for (OrderBook book : books) if (book != null) book.writeTo(out);
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            // segments before both the snapshot and the projector are no longer needed
+            journal.pruneBefore(Math.min(at >>> 32, service.projectedSegment(index)));
+        }
+
+        // Returns the journal position the snapshot covers, or 0 when there is none
+        private long loadSnapshot() throws IOException {
+            if (!Files.exists(snapshotFile)) return 0;
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(snapshotFile), 1 << 16))) {
+                if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Bad snapshot " + snapshotFile);
+                long at = in.readLong();
+                maxOrderId = in.readLong();
+                int count = in.readInt();
+                int orders = 0;
+                for (int i = 0; i < count; i++) {
+                    String symbol = in.readUTF();
+                    int id = symbols.id(symbol);
+                    // a symbol no longer listed still has to be read past
+                    OrderBook book = id >= 0 && books[id] != null ? books[id] : new OrderBook(symbol);
+                    book.readFrom(in);
+                    orders += book.index.size();
+                }
+                Metrics.add("recovery.snapshotOrders", orders);
+                return at;
+            }
+        }
+
+        private static boolean contains(OrderBook[] arr, int n, OrderBook b) {
+            for (int i = 0; i < n; i++) if (arr[i] == b) return true;
+            return false;
+        }
+
+        private OrderResult process(OrderCommand c, OrderBook book) throws IOException {
+            if (c.kind == OrderCommand.CANCEL) {
+                long qty = book.cancel(c.orderId, c.userId);
+                if (qty == 0) return new OrderResult(c.orderId, OrderStatus.REJECTED, 0, 0, 0);
+                journal.appendCancel(book.symbolBytes, c.orderId, c.userId, now);
+                return new OrderResult(c.orderId, OrderStatus.CANCELLED, 0, qty, 0);
+            }
+            journal.appendOrder(book.symbolBytes, c.orderId, c.userId, c.side, c.type, c.price, c.qty, now);
+            maxOrderId = Math.max(maxOrderId, c.orderId);
+            current = book;
+            long filled = book.submit(c.orderId, c.userId, c.side, c.type, c.price, c.qty, this);
+            if (book.selfTradePrevented()) Metrics.increment("orders.selfTradePrevented");
+            return OrderResult.of(c.orderId, c.type, c.qty, filled, book.lastTradePrice(), book.selfTradePrevented());
+        }
+
+        public void onTrade(long makerId, int makerUser, long takerId, int takerUser,
+                            byte takerSide, long price, long qty) {
+            if (replaying) return;
+            try {
+                journal.appendTrade(current.symbolBytes, makerId, makerUser, takerId, takerUser,
+                        takerSide, price, qty, now);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        /**
+         * Loads the latest snapshot, then re-matches only the journal tail
+         * written after it. Trade records are reproduced by matching, not read.
+         */
+        private long recover() throws IOException {
+            long at = loadSnapshot();
+            replaying = true;
+            int replayed = journal.replay(at >>> 32, (int) at, (type, body) -> {
+                if (type == Journal.TRADE) return;
+                long orderId = body.getLong();
+                int userId = body.getInt();
+                maxOrderId = Math.max(maxOrderId, orderId);
+                if (type == Journal.ORDER) {
+                    byte side = body.get(), orderType = body.get();
+                    long price = body.getLong(), qty = body.getLong();
+                    body.getLong();
+                    OrderBook book = bookOf(JournalCursor.readSymbolId(body, symbols));
+                    if (book != null) book.submit(orderId, userId, side, orderType, price, qty, this);
+                } else if (type == Journal.CANCEL) {
+                    body.getLong();
+                    OrderBook book = bookOf(JournalCursor.readSymbolId(body, symbols));
+                    if (book != null) book.cancel(orderId, userId);
+                }
+            });
+            replaying = false;
+            recoveredAt = journal.committedPosition();
+            sinceSnapshot = replayed;
+            Metrics.add("recovery.replayedRecords", replayed);
+            for (OrderBook book : books) {
+                if (book != null && book.tradeCount() > 0) service.publishTradePrice(book.symbol, book.lastTradePrice());
+            }
+            return maxOrderId;
+        }
+
+        private OrderBook bookOf(int symbol) { return symbol < 0 ? null : books[symbol]; }
+
+        // only while the shard is idle, e.g. once start() has completed and nothing is queued
+        OrderBook book(int symbol) { return books[symbol]; }
+
+        // only while the shard is idle, e.g. right after recovery
+        void forEachResting(RiskEngine risk) {
+            for (int s = 0; s < books.length; s++) {
+                if (books[s] == null) continue;
+                int symbol = s;
+                books[s].forEachResting((id, userId, side, price, remaining) ->
+                        risk.restore(id, userId, symbol, side, price, remaining));
+            }
+        }
+    }
+
+    /**
+     * Tails every shard journal and projects trades into the trades table and
+     * the last trade price into stocks.price, recording its read position in
+     * journal_cursor within the same transaction.
+     */
+    static final class JournalProjector implements Runnable, JournalVisitor {
+        private static final int MAX_RECORDS = 5_000;
+
+        private final TradeDAO dao;
+        private final MatchingShard[] shards;
+        private final JournalCursor[] cursors;
+        private final AtomicLongArray projectedSegments;
+        private final List<Trade> trades = new ArrayList<>();
+        private final Consumer<List<Trade>> projected;
+        private final SymbolRegistry symbols;
+        private final Thread thread;
+        private volatile boolean running = true;
+        private int shard; // being projected, for onRecord
+
+        JournalProjector(TradeDAO dao, Path journalDir, MatchingShard[] shards, SymbolRegistry symbols,
+                         Consumer<List<Trade>> projected) throws SQLException {
+            this.dao = dao;
+            this.symbols = symbols;
+            this.projected = projected;
+            this.shards = shards;
+            this.cursors = new JournalCursor[shards.length];
+            this.projectedSegments = new AtomicLongArray(shards.length);
+            for (int i = 0; i < shards.length; i++) {
+                long[] at = dao.loadCursor(i);
+                cursors[i] = new JournalCursor(journalDir, i, at[0], (int) at[1]);
+                projectedSegments.set(i, at[0]);
+            }
+            this.thread = new Thread(this, "journal-projector");
+            thread.setDaemon(true);
+        }
+
+        void start() { thread.start(); }
+
+        void stop() { running = false; thread.interrupt(); }
+
+        long projectedSegment(int shard) { return projectedSegments.get(shard); }
+
+        public void run() {
+            while (running) {
+                boolean idle = true;
+                for (int i = 0; i < shards.length; i++) {
+                    try {
+                        if (project(i)) idle = false;
+                    } catch (IOException | SQLException e) {
+                        System.err.println("Journal projection failed for shard " + i + ": " + e);
+                    }
+                }
+                if (idle) {
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        private boolean project(int shard) throws IOException, SQLException {
+            JournalCursor cursor = cursors[shard];
+            long segment = cursor.segment();
+            int offset = cursor.offset();
+            trades.clear();
+            this.shard = shard;
+            if (cursor.readTo(shards[shard].journal().committedPosition(), MAX_RECORDS, this) == 0) return false;
+            try {
+                dao.insertProjected(shard, cursor.segment(), cursor.offset(), trades);
+                projectedSegments.set(shard, cursor.segment());
+                if (!trades.isEmpty()) projected.accept(trades);
+            } catch (SQLException e) {
+                // re-read the same records next time round
+                cursor.close();
+                cursors[shard] = new JournalCursor(cursor.dir(), shard, segment, offset);
+                throw e;
+            }
+            return true;
+        }
+
+        public void onRecord(byte type, ByteBuffer body) {
+            if (type != Journal.TRADE) return;
+            long makerId = body.getLong(); int makerUser = body.getInt();
+            long takerId = body.getLong(); int takerUser = body.getInt();
+            boolean takerBuys = body.get() == BUY;
+            long price = body.getLong(), qty = body.getLong(), time = body.getLong();
+            Trade t = new Trade(JournalCursor.readSymbol(body, symbols), price, qty,
+                    takerBuys ? takerId : makerId, takerBuys ? makerId : takerId,
+                    takerBuys ? takerUser : makerUser, takerBuys ? makerUser : takerUser, time);
+            // the cursor still points at the start of this record
+            JournalCursor cursor = cursors[shard];
+            t.recovered = Journal.position(cursor.segment(), cursor.offset()) < shards[shard].recoveredPosition();
+            trades.add(t);
+        }
+    }
+
+    /* =============================
+       MARKET DATA FEED
+       ============================= */
+    /**
+     * Receives parsed ticks; symbol is the snapshot index, ts the receive
+     * time in epoch millis (one clock read per parsed buffer, not per tick),
+     * price in ticks (cents).
+     */
+    interface TickSink {
+        void onTick(int symbol, long ts, long priceTicks, long size);
+    }
+
+    /** A source of "SYMBOL,price[,size]" lines: a replay file, a UDP port or a TCP port. */
+    interface TickSource {
+        String name();
+        void run(TickParser parser, TickSink sink) throws IOException;
+        void close();
+    }
+
+    /**
+     * Parses tick lines straight from bytes: symbols are resolved by the
+     * SymbolRegistry over their ASCII bytes and prices are read as
+     * fixed-point cents, so a tick costs no String or Double.
+     */
+    static final class TickParser {
+        private final SymbolRegistry symbols;
+        long unknown;
+
+        TickParser(SymbolRegistry symbols) { this.symbols = symbols; }
+
+        /**
+         * Parses every complete line in buf[off, off+len) and returns the
+         * number of bytes consumed; a trailing partial line is left for the
+         * next read unless endOfInput is set.
+         */
+        int parse(byte[] buf, int off, int len, boolean endOfInput, TickSink sink) {
+            // a clock read costs as much as storing the tick, and a 64 KB buffer parses well inside a millisecond
+            long now = System.currentTimeMillis();
+            int end = off + len, lineStart = off;
+            for (int i = off; i < end; i++) {
+                if (buf[i] == '\n') {
+                    parseLine(buf, lineStart, i, now, sink);
+                    lineStart = i + 1;
+                }
+            }
+            if (endOfInput && lineStart < end) {
+                parseLine(buf, lineStart, end, now, sink);
+                lineStart = end;
+            }
+            return lineStart - off;
+        }
+
+        private void parseLine(byte[] b, int from, int to, long now, TickSink sink) {
+            if (to > from && b[to - 1] == '\r') to--;
+            int comma = from;
+            while (comma < to && b[comma] != ',') comma++;
+            if (comma == from || comma >= to) return;
+            int symbol = symbols.id(b, from, comma);
+            if (symbol < 0) { unknown++; return; }
+            int p = comma + 1;
+            while (p < to && b[p] != ',') p++;
+            long ticks = parseTicks(b, comma + 1, p);
+            if (ticks == BAD_PRICE) return;
+            long size = 0;
+            if (p < to && b[p] == ',') {
+                for (p++; p < to && b[p] >= '0' && b[p] <= '9'; p++) size = size * 10 + (b[p] - '0');
+            }
+            sink.onTick(symbol, now, ticks, size);
+        }
+
+    }
+
+    /** Reads lines from a stream with carry-over of partial lines between reads. */
+    static void pumpTicks(InputStream in, TickParser parser, TickSink sink) throws IOException {
+        byte[] buf = new byte[1 << 16];
+        int carry = 0;
+        int n;
+        while ((n = in.read(buf, carry, buf.length - carry)) > 0) {
+            int avail = carry + n;
+            int used = parser.parse(buf, 0, avail, false, sink);
+            carry = avail - used;
+            if (carry == buf.length) carry = 0; // a 64 KB line is garbage, drop it
+            else System.arraycopy(buf, used, buf, 0, carry);
+        }
+        parser.parse(buf, 0, carry, true, sink);
+    }
+
+    /** Replays a file as fast as it can be parsed, then finishes. */
+    static final class FileTickSource implements TickSource {
+        private final Path file;
+        FileTickSource(Path file) { this.file = file; }
+
+        public String name() { return "file " + file; }
+
+        public void run(TickParser parser, TickSink sink) throws IOException {
+            long start = System.nanoTime();
+            try (InputStream in = Files.newInputStream(file)) {
+                pumpTicks(in, parser, sink);
+            }
+            System.out.printf("Feed replay of %s finished in %d ms%n", file, (System.nanoTime() - start) / 1_000_000);
+        }
+
+        public void close() { }
+    }
+
+    /** One or more tick lines per datagram, on the loopback interface. */
+    static final class UdpTickSource implements TickSource {
+        private final DatagramSocket socket;
+        UdpTickSource(int port) throws IOException {
+            socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        }
+
+        public String name() { return "udp " + socket.getLocalPort(); }
+
+        public void run(TickParser parser, TickSink sink) throws IOException {
+            byte[] buf = new byte[1 << 16];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!socket.isClosed()) {
+                try {
+                    socket.receive(packet);
+                } catch (SocketException e) {
+                    return; // closed
+                }
+                parser.parse(buf, 0, packet.getLength(), true, sink);
+                packet.setLength(buf.length);
+            }
+        }
+
+        public void close() { socket.close(); }
+    }
+
+    /** Line-oriented TCP on the loopback interface; connections are served one at a time. */
+    static final class TcpTickSource implements TickSource {
+        private final ServerSocket server;
+        TcpTickSource(int port) throws IOException {
+            server = new ServerSocket(port, 8, InetAddress.getLoopbackAddress());
+        }
+
+        public String name() { return "tcp " + server.getLocalPort(); }
+
+        public void run(TickParser parser, TickSink sink) throws IOException {
+            while (!server.isClosed()) {
+                try (Socket s = server.accept(); InputStream in = s.getInputStream()) {
+                    pumpTicks(in, parser, sink);
+                } catch (SocketException e) {
+                    if (server.isClosed()) return;
+                    System.err.println("Feed connection dropped: " + e);
+                }
+            }
+        }
+
+        public void close() {
+            try {
+                server.close();
+            } catch (IOException ignored) {
+                // shutting down
+            }
+        }
+    }
+
+    /**
+     * Coalesces ticks per symbol and applies them to StockService in batches.
+     * Source threads only store the latest price and raise a dirty flag; the
+     * flusher thread collects dirty symbols every window and pushes them
+     * through StockService.updatePrices (one JDBC batch, one snapshot), so
+     * the DB sees at most one row per symbol per window however fast the
+     * feed runs.
+     */
+    static final class FeedIngester implements TickSink {
+        private final StockService service;
+        private final StockSnapshot symbols;
+        private final long windowMs;
+        private final AtomicLongArray latest;
+        private final AtomicIntegerArray dirty;
+        private final LongAdder ticks = new LongAdder();
+        private final List<TickSource> sources = new ArrayList<>();
+        private final List<Thread> threads = new ArrayList<>();
+        private TickSink[] taps = new TickSink[0];
+        private volatile boolean running;
+
+        FeedIngester(StockService service, long windowMs) throws SQLException {
+            this.service = service;
+            this.symbols = service.snapshot();
+            this.windowMs = windowMs;
+            this.latest = new AtomicLongArray(symbols.stocks.length);
+            this.dirty = new AtomicIntegerArray(symbols.stocks.length);
+        }
+
+        void addSource(TickSource source) { sources.add(source); }
+
+        // every raw tick, before coalescing (history, candles); register before start()
+        void addTap(TickSink tap) {
+            taps = Arrays.copyOf(taps, taps.length + 1);
+            taps[taps.length - 1] = tap;
+        }
+
+        public void onTick(int symbol, long ts, long priceTicks, long size) {
+            for (TickSink tap : taps) tap.onTick(symbol, ts, priceTicks, size);
+            latest.lazySet(symbol, priceTicks);
+            dirty.lazySet(symbol, 1);
+            ticks.increment();
+        }
+
+        void start() {
+            running = true;
+            for (TickSource source : sources) {
+                TickParser parser = new TickParser(symbols.registry);
+                Thread t = new Thread(() -> {
+                    try {
+                        source.run(parser, this);
+                    } catch (IOException | RuntimeException e) {
+                        System.err.println("Feed source " + source.name() + " failed: " + e);
+                    } finally {
+                        Metrics.add("feed.unknownSymbol", parser.unknown);
+                    }
+                }, "feed-" + source.name());
+                t.setDaemon(true);
+                t.start();
+                threads.add(t);
+                System.out.println("Feed source: " + source.name());
+            }
+            Thread flusher = new Thread(this::flushLoop, "feed-flush");
+            flusher.setDaemon(true);
+            flusher.start();
+            threads.add(flusher);
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            for (TickSource source : sources) source.close();
+            for (Thread t : threads) t.join(5_000);
+        }
+
+        private void flushLoop() {
+            List<Map.Entry<String, Long>> batch = new ArrayList<>();
+            while (running) {
+                long start = System.nanoTime();
+                flush(batch);
+                long took = System.nanoTime() - start;
+                // never spend more than a quarter of the time writing through: a slow flush stretches the
+                // window, so more ticks coalesce per row instead of the DB starving the source threads
+                long sleepNanos = Math.max(windowMs * 1_000_000 - took, 3 * took);
+                if (sleepNanos > 0) LockSupport.parkNanos(sleepNanos);
+            }
+            flush(batch);
+        }
+
+        // clear the flag before reading the price: a racing tick re-raises it and is flushed next window
+        private void flush(List<Map.Entry<String, Long>> batch) {
+            batch.clear();
+            for (int i = 0; i < symbols.stocks.length; i++) {
+                if (dirty.get(i) == 0) continue;
+                dirty.set(i, 0);
+                batch.add(Map.entry(symbols.stocks[i].symbol, latest.get(i)));
+            }
+            Metrics.set("feed.ticks", ticks.sum());
+            if (batch.isEmpty()) return;
+            long start = System.nanoTime();
+            try {
+                service.updatePrices(batch, PRICE_BATCH_CHUNK);
+                Metrics.increment("feed.flushes");
+                Metrics.add("feed.flushedSymbols", batch.size());
+                Metrics.set("feed.lastFlushMicros", (System.nanoTime() - start) / 1_000);
+            } catch (SQLException e) {
+                // the prices are dropped from this window; the next tick per symbol retries
+                Metrics.increment("feed.flushErrors");
+                System.err.println("Feed flush failed: " + e);
+            }
+        }
+    }
+
+    /* =============================
+       TICK HISTORY
+       ============================= */
+    /**
+     * Append-only tick history, one partition per UTC day under data/ticks.
+     * A partition's .col file is a sequence of fixed-size blocks, each owned
+     * by one symbol and laid out column-wise: BLOCK_TICKS timestamps, then
+     * prices (ticks), then sizes. The .dir file lists block owners in
+     * allocation order, so a restart rebuilds the per-symbol block lists by
+     * reading it; it is mapped like the data, so opening a block is a memory
+     * write rather than a syscall. Timestamps are non-decreasing per symbol,
+     * which lets a range query binary-search the block list and then the
+     * block.
+     *
+     * Appends are staged per symbol in a small heap run and copied into the
+     * mapped columns STAGE_TICKS at a time: one tick touches one heap cache
+     * line instead of three mapped pages. A range query drains the symbol's
+     * run first, close() drains them all; like the rest of the history, a
+     * crash may lose the last few ticks per symbol.
+     */
+    static final class TickStore implements TickSink {
+        static final int BLOCK_TICKS = 1024;
+        static final int BLOCK_BYTES = BLOCK_TICKS * 24;
+        static final int REGION_BLOCKS = 1024; // 24 MB mapped at a time
+        static final long DAY_MS = 86_400_000L;
+        static final int DIR_MIN_BYTES = 64 * 1024;
+        static final int STAGE_TICKS = 32;
+
+        private final Path dir;
+        private final SymbolRegistry symbols;
+        private final long[] lastTs;
+        // per symbol: STAGE_TICKS timestamps, prices, sizes; staged[s] of them in use
+        private final long[] stage;
+        private final int[] staged;
+        private final Map<Long, Partition> partitions = new HashMap<>();
+        private final TreeSet<Long> days = new TreeSet<>(); // partitions present on disk
+        private Partition current;
+
+        TickStore(Path dir, SymbolRegistry symbols) throws IOException {
+            this.dir = dir;
+            this.symbols = symbols;
+            this.lastTs = new long[symbols.size()];
+            this.stage = new long[symbols.size() * STAGE_TICKS * 3];
+            this.staged = new int[symbols.size()];
+            Files.createDirectories(dir);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.col")) {
+                for (Path f : files) {
+                    String name = f.getFileName().toString();
+                    days.add(LocalDate.parse(name.substring(0, name.length() - 4)).toEpochDay());
+                }
+            }
+            long today = Math.floorDiv(System.currentTimeMillis(), DAY_MS);
+            Partition p = partition(today, false);
+            if (p != null) {
+                current = p;
+                for (int s = 0; s < symbols.size(); s++) lastTs[s] = p.lastTs(s);
+            }
+        }
+
+        public void onTick(int symbol, long ts, long priceTicks, long size) {
+            append(symbol, ts, priceTicks, size);
+        }
+
+        synchronized void append(int symbol, long ts, long priceTicks, long size) {
+            if (ts < lastTs[symbol]) ts = lastTs[symbol];
+            lastTs[symbol] = ts;
+            try {
+                if (current == null || ts < current.start || ts >= current.start + DAY_MS) {
+                    // staged runs belong to the partition they were read for
+                    drainAll();
+                    current = partition(Math.floorDiv(ts, DAY_MS), true);
+                }
+                int base = symbol * STAGE_TICKS * 3, n = staged[symbol];
+                stage[base + n] = ts;
+                stage[base + STAGE_TICKS + n] = priceTicks;
+                stage[base + 2 * STAGE_TICKS + n] = size;
+                if (++n < STAGE_TICKS) {
+                    staged[symbol] = n;
+                } else {
+                    staged[symbol] = 0;
+                    current.append(symbol, stage, base, STAGE_TICKS, n);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private void drain(int symbol) throws IOException {
+            int n = staged[symbol];
+            if (n == 0) return;
+            staged[symbol] = 0;
+            current.append(symbol, stage, symbol * STAGE_TICKS * 3, STAGE_TICKS, n);
+        }
+
+        private void drainAll() throws IOException {
+            for (int s = 0; s < staged.length; s++) drain(s);
+        }
+
+        /** Ticks of one symbol with from <= ts <= to, oldest first, at most limit. */
+        TickRange range(int symbol, long from, long to, int limit) throws IOException {
+            TickRange out = new TickRange(Math.min(limit, 1024));
+            Long[] present;
+            synchronized (this) {
+                present = days.subSet(Math.floorDiv(from, DAY_MS), true, Math.floorDiv(to, DAY_MS), true)
+                        .toArray(new Long[0]);
+            }
+            for (int d = 0; d < present.length && out.count < limit; d++) {
+                int[] blocks;
+                int tail;
+                Partition p;
+                synchronized (this) {
+                    drain(symbol);
+                    p = partition(present[d], false);
+                    if (p == null || p.blockCount[symbol] == 0) continue;
+                    blocks = Arrays.copyOf(p.blocks[symbol], p.blockCount[symbol]);
+                    tail = p.tailCount[symbol];
+                }
+                p.scan(blocks, tail, from, to, limit, out);
+            }
+            return out;
+        }
+
+        synchronized void close() throws IOException {
+            drainAll();
+            for (Partition p : partitions.values()) p.close();
+            partitions.clear();
+            current = null;
+        }
+
+        private Partition partition(long day, boolean create) throws IOException {
+            Partition p = partitions.get(day);
+            if (p != null) return p;
+            Path col = dir.resolve(LocalDate.ofEpochDay(day) + ".col");
+            if (!create && !Files.exists(col)) return null;
+            p = new Partition(day, col, dir.resolve(LocalDate.ofEpochDay(day) + ".dir"));
+            partitions.put(day, p);
+            days.add(day);
+            return p;
+        }
+
+        final class Partition {
+            final long day;
+            final long start;
+            private final FileChannel data;
+            private final FileChannel directory;
+            private volatile MappedByteBuffer[] regions = new MappedByteBuffer[0];
+            private volatile LongBuffer[] longViews = new LongBuffer[0];
+            private int blockTotal;
+            private MappedByteBuffer dirMap;
+            private int dirPos;
+            final int[][] blocks = new int[symbols.size()][];
+            final int[] blockCount = new int[symbols.size()];
+            final int[] tailCount = new int[symbols.size()];
+
+            Partition(long day, Path col, Path dirFile) throws IOException {
+                this.day = day;
+                this.start = day * DAY_MS;
+                data = FileChannel.open(col, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                directory = FileChannel.open(dirFile,
+                        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                for (int s = 0; s < symbols.size(); s++) blocks[s] = new int[4];
+                load();
+            }
+
+            // .dir entries: [short len][symbol bytes][int block]; the mapped tail is zeros, so len 0 ends the list
+            private void load() throws IOException {
+                mapDirectory((int) Math.max(DIR_MIN_BYTES, directory.size()));
+                ByteBuffer d = dirMap;
+                int pos = 0;
+                while (pos + 2 <= d.capacity()) {
+                    int len = d.getShort(pos), from = pos + 2;
+                    if (len <= 0 || from + len + 4 > d.capacity()) break;
+                    int block = d.getInt(from + len);
+                    pos = from + len + 4;
+                    dirPos = pos;
+                    blockTotal = Math.max(blockTotal, block + 1);
+                    int s = symbols.id(d, from, from + len);
+                    if (s >= 0) addBlock(s, block);
+                }
+                for (int s = 0; s < symbols.size(); s++) {
+                    if (blockCount[s] == 0) continue;
+                    // entries are published by their timestamp: the tail ends at the first zero
+                    ByteBuffer b = region(blocks[s][blockCount[s] - 1]);
+                    int base = offset(blocks[s][blockCount[s] - 1]), lo = 0, hi = BLOCK_TICKS;
+                    while (lo < hi) {
+                        int mid = (lo + hi) >>> 1;
+                        if (b.getLong(base + mid * 8) != 0) lo = mid + 1; else hi = mid;
+                    }
+                    tailCount[s] = lo;
+                }
+            }
+
+            long lastTs(int s) {
+                if (blockCount[s] == 0 || tailCount[s] == 0) return 0;
+                int block = blocks[s][blockCount[s] - 1];
+                return region(block).getLong(offset(block) + (tailCount[s] - 1) * 8);
+            }
+
+            /** Appends n ticks laid out as [stride timestamps][stride prices][stride sizes] from cols[base]. */
+            void append(int s, long[] cols, int base, int stride, int n) throws IOException {
+                for (int k = 0; k < n; ) {
+                    int m = Math.min(n - k, BLOCK_TICKS - openBlock(s));
+                    int block = blocks[s][blockCount[s] - 1];
+                    LongBuffer b = longs(block);
+                    int at = offset(block) / 8 + tailCount[s];
+                    b.put(at + BLOCK_TICKS, cols, base + stride + k, m);
+                    b.put(at + 2 * BLOCK_TICKS, cols, base + 2 * stride + k, m);
+                    // timestamps last: a restart finds the tail at the first zero one
+                    b.put(at, cols, base + k, m);
+                    tailCount[s] += m;
+                    k += m;
+                }
+            }
+
+            // the symbol's last block, starting a new one when it is full; returns the ticks already in it
+            private int openBlock(int s) throws IOException {
+                if (blockCount[s] == 0 || tailCount[s] == BLOCK_TICKS) {
+                    int block = blockTotal++;
+                    byte[] name = symbols.bytes(s);
+                    if (dirPos + 6 + name.length > dirMap.capacity()) mapDirectory(dirMap.capacity() * 2);
+                    // the length goes in last: an entry cut short by a crash still reads as the end of the list
+                    dirMap.put(dirPos + 2, name).putInt(dirPos + 2 + name.length, block);
+                    dirMap.putShort(dirPos, (short) name.length);
+                    dirPos += 6 + name.length;
+                    addBlock(s, block);
+                    tailCount[s] = 0;
+                }
+                return tailCount[s];
+            }
+
+            void scan(int[] symbolBlocks, int tail, long from, long to, int limit, TickRange out) {
+                // last block starting at or before 'from' (the range may begin inside it)
+                int lo = 0, hi = symbolBlocks.length - 1;
+                while (lo < hi) {
+                    int mid = (lo + hi + 1) >>> 1;
+                    if (firstTs(symbolBlocks[mid]) <= from) lo = mid; else hi = mid - 1;
+                }
+                for (int k = lo; k < symbolBlocks.length && out.count < limit; k++) {
+                    LongBuffer b = longs(symbolBlocks[k]);
+                    int base = offset(symbolBlocks[k]) / 8;
+                    int n = k == symbolBlocks.length - 1 ? tail : BLOCK_TICKS;
+                    int start = lowerBound(b, base, 0, n, from);
+                    int end = lowerBound(b, base, start, n, to + 1);
+                    int m = Math.min(end - start, limit - out.count);
+                    // whole column runs at once: three bulk copies per block
+                    out.ensure(m);
+                    b.get(base + start, out.ts, out.count, m);
+                    b.get(base + BLOCK_TICKS + start, out.price, out.count, m);
+                    b.get(base + 2 * BLOCK_TICKS + start, out.size, out.count, m);
+                    out.count += m;
+                    if (end < n) return;
+                }
+            }
+
+            private long firstTs(int block) { return region(block).getLong(offset(block)); }
+
+            // first index in [lo, hi) whose timestamp is >= ts
+            private int lowerBound(LongBuffer b, int base, int lo, int hi, long ts) {
+                while (lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if (b.get(base + mid) < ts) lo = mid + 1; else hi = mid;
+                }
+                return lo;
+            }
+
+            private LongBuffer longs(int block) {
+                region(block);
+                return longViews[block / REGION_BLOCKS];
+            }
+
+            private void addBlock(int s, int block) {
+                if (blockCount[s] == blocks[s].length) blocks[s] = Arrays.copyOf(blocks[s], blockCount[s] * 2);
+                blocks[s][blockCount[s]++] = block;
+            }
+
+            private int offset(int block) { return (block % REGION_BLOCKS) * BLOCK_BYTES; }
+
+            private void mapDirectory(int bytes) throws IOException {
+                dirMap = directory.map(FileChannel.MapMode.READ_WRITE, 0, bytes);
+            }
+
+            private MappedByteBuffer region(int block) {
+                int r = block / REGION_BLOCKS;
+                if (r >= regions.length || regions[r] == null) mapRegion(r);
+                return regions[r];
+            }
+
+            private synchronized void mapRegion(int r) {
+                if (r < regions.length && regions[r] != null) return;
+                try {
+                    MappedByteBuffer[] next = Arrays.copyOf(regions, Math.max(regions.length, r + 1));
+                    LongBuffer[] views = Arrays.copyOf(longViews, next.length);
+                    next[r] = data.map(FileChannel.MapMode.READ_WRITE,
+                            (long) r * REGION_BLOCKS * BLOCK_BYTES, (long) REGION_BLOCKS * BLOCK_BYTES);
+                    views[r] = next[r].asLongBuffer();
+                    longViews = views;
+                    regions = next;
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+
+            void close() throws IOException {
+                data.close();
+                directory.close();
+            }
+        }
+    }
+
+    /** Columns of a tick range query. */
+    static final class TickRange {
+        long[] ts, price, size;
+        int count;
+
+        TickRange(int capacity) {
+            ts = new long[capacity];
+            price = new long[capacity];
+            size = new long[capacity];
+        }
+
+        void ensure(int extra) {
+            if (count + extra <= ts.length) return;
+            int cap = Math.max(ts.length * 2, count + extra);
+            ts = Arrays.copyOf(ts, cap);
+            price = Arrays.copyOf(price, cap);
+            size = Arrays.copyOf(size, cap);
+        }
+    }
+
+    /* =============================
+       CANDLES
+       ============================= */
+    /**
+     * Incremental OHLCV bars for 1s/1m/5m/1h/1d, aligned to UTC. Every tick
+     * updates one open bar per period in flat primitive arrays: O(1) and no
+     * allocation. A bar closes when a tick lands in a later bucket or when
+     * the writer's sweep finds its period over. Closed bars are copied into a
+     * preallocated ring that the writer thread drains into the candles table
+     * once a second.
+     */
+    static final class CandleEngine implements TickSink {
+        static final long[] PERIOD_MS = { 1_000, 60_000, 300_000, 3_600_000, 86_400_000 };
+        static final String[] PERIOD_NAMES = { "1s", "1m", "5m", "1h", "1d" };
+        private static final int P = PERIOD_MS.length;
+        private static final int REC = 7; // slot, start, open, high, low, close, volume
+        private static final int RING_BARS = 1 << 16;
+        // projected trades reach the engine a projector round or more after their own time
+        private static final long LATE_MS = 500;
+
+        private final SymbolRegistry symbols;
+        private final CandleDAO dao;
+        // open bars, index = symbol * P + period; start == 0 means none
+        private final long[] start, open, high, low, close, volume;
+        // start of the last bar closed per slot; it is already stored, so it is never reopened
+        private final long[] closed;
+        private final long[] ring = new long[RING_BARS * REC];
+        private final long[] pending = new long[RING_BARS * REC];
+        private int ringBars;
+        private final Thread writer;
+        private volatile boolean running = true;
+
+        CandleEngine(SymbolRegistry symbols, CandleDAO dao) {
+            this.dao = dao;
+            this.symbols = symbols;
+            int slots = symbols.size() * P;
+            start = new long[slots];
+            open = new long[slots];
+            high = new long[slots];
+            low = new long[slots];
+            close = new long[slots];
+            volume = new long[slots];
+            closed = new long[slots];
+            writer = new Thread(this::writeLoop, "candle-writer");
+            writer.setDaemon(true);
+        }
+
+        void start() { writer.start(); }
+
+        void stop() throws InterruptedException {
+            running = false;
+            writer.interrupt();
+            writer.join(5_000);
+        }
+
+        public void onTick(int symbol, long ts, long priceTicks, long size) {
+            record(symbol, ts, priceTicks, size);
+        }
+
+        /**
+         * Projected trades carry their own time. One that falls in a bar
+         * already closed, by a newer tick or by the sweep, is ignored
+         * rather than reopening and overwriting the stored bar.
+         */
+        void onTrades(List<Trade> trades) {
+            for (Trade t : trades) {
+                int i = symbols.id(t.symbol);
+                if (i >= 0) record(i, t.time, t.price, t.qty);
+            }
+        }
+
+        synchronized void record(int symbol, long ts, long priceTicks, long size) {
+            for (int p = 0, slot = symbol * P; p < P; p++, slot++) {
+                long bucket = ts - Math.floorMod(ts, PERIOD_MS[p]);
+                if (bucket == start[slot]) {
+                    if (priceTicks > high[slot]) high[slot] = priceTicks;
+                    if (priceTicks < low[slot]) low[slot] = priceTicks;
+                    close[slot] = priceTicks;
+                    volume[slot] += size;
+                } else if (bucket > start[slot] && bucket > closed[slot]) {
+                    if (start[slot] != 0) closeBar(slot);
+                    start[slot] = bucket;
+                    open[slot] = high[slot] = low[slot] = close[slot] = priceTicks;
+                    volume[slot] = size;
+                } else {
+                    Metrics.increment("candles.late");
+                }
+            }
+        }
+
+        /** The open bar of one symbol and period as {start, o, h, l, c, v}, or null. */
+        synchronized long[] openBar(int symbol, int period) {
+            int slot = symbol * P + period;
+            if (start[slot] == 0) return null;
+            return new long[] { start[slot], open[slot], high[slot], low[slot], close[slot], volume[slot] };
+        }
+
+        static int periodIndex(String name) {
+            for (int p = 0; p < P; p++) if (PERIOD_NAMES[p].equals(name)) return p;
+            return -1;
+        }
+
+        private void closeBar(int slot) {
+            closed[slot] = start[slot];
+            if (ringBars == RING_BARS) {
+                Metrics.increment("candles.dropped");
+                return;
+            }
+            int at = ringBars++ * REC;
+            ring[at] = slot;
+            ring[at + 1] = start[slot];
+            ring[at + 2] = open[slot];
+            ring[at + 3] = high[slot];
+            ring[at + 4] = low[slot];
+            ring[at + 5] = close[slot];
+            ring[at + 6] = volume[slot];
+        }
+
+        // closes bars whose period ended more than LATE_MS ago, then hands the ring to the writer
+        private synchronized int sweepAndDrain(long now) {
+            for (int slot = 0; slot < start.length; slot++) {
+                if (start[slot] != 0 && start[slot] + PERIOD_MS[slot % P] + LATE_MS <= now) {
+                    closeBar(slot);
+                    start[slot] = 0;
+                }
+            }
+            int n = ringBars;
+            System.arraycopy(ring, 0, pending, 0, n * REC);
+            ringBars = 0;
+            return n;
+        }
+
+        private void writeLoop() {
+            while (running) {
+                try {
+                    Thread.sleep(1_000);
+                } catch (InterruptedException e) {
+                    // stopping: one last sweep below
+                }
+                int n = sweepAndDrain(System.currentTimeMillis());
+                if (n == 0) continue;
+                try {
+                    dao.mergeBatch(symbols, pending, n);
+                    Metrics.add("candles.closed", n);
+                } catch (SQLException e) {
+                    Metrics.add("candles.dropped", n);
+                    System.err.println("Candle write failed: " + e);
+                }
+            }
+        }
+
+        static String periodOf(long slot) { return PERIOD_NAMES[(int) (slot % P)]; }
+        static int symbolOf(long slot) { return (int) (slot / P); }
+    }
+
+    /* =============================
+       LEDGER
+       ============================= */
+    /**
+     * Cash and positions per user, updated from every projected fill and
+     * written to H2 asynchronously. Each account has its own StampedLock and
+     * sequence number: fills for different users never share a lock, and
+     * portfolio reads are optimistic, taking neither a lock nor a DB
+     * connection unless a fill races them. An account row records the last
+     * trade it includes, so re-applying trades after a restart is idempotent.
+     */
+    static final class Ledger {
+        private final LedgerDAO dao;
+        private final TradeDAO trades;
+        private final SymbolRegistry symbols;
+        private final long startingCash;
+        private final long flushMs;
+        private final ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<Account> dirty = new ConcurrentLinkedQueue<>();
+        private volatile long appliedThrough;
+        private long persistedThrough;
+        private final Thread writer;
+        private volatile boolean running = true;
+        private PositionListener positions;
+
+        /** Told about each side of a fill once the ledger has applied it, on the projector thread. */
+        interface PositionListener {
+            void onFill(int userId, int symbol, long qty, long cost, long cash);
+        }
+
+        static final class Account {
+            final int userId;
+            final StampedLock lock = new StampedLock();
+            final AtomicBoolean queued = new AtomicBoolean();
+            long seq, lastTrade, cash;
+            int count;
+            int[] symbols;
+            long[] qty, cost;
+            long persistedSeq; // writer thread only
+
+            Account(int userId, long cash) {
+                this.userId = userId;
+                this.cash = cash;
+                symbols = new int[4];
+                qty = new long[4];
+                cost = new long[4];
+            }
+
+            Account(Portfolio p) {
+                userId = p.userId; seq = p.seq; lastTrade = p.lastTrade; cash = p.cash;
+                symbols = p.symbols; qty = p.qty; cost = p.cost;
+                count = symbols.length;
+                persistedSeq = p.seq;
+            }
+
+            // caller holds the write lock
+            int slot(int symbol) {
+                for (int i = 0; i < count; i++) if (symbols[i] == symbol) return i;
+                if (count == symbols.length) {
+                    int n = Math.max(4, count * 2);
+                    symbols = Arrays.copyOf(symbols, n);
+                    qty = Arrays.copyOf(qty, n);
+                    cost = Arrays.copyOf(cost, n);
+                }
+                symbols[count] = symbol;
+                return count++;
+            }
+
+            // bounded by every array, so a torn optimistic read cannot index past one
+            long qtyOf(int symbol) {
+                int[] s = symbols;
+                long[] q = qty;
+                int n = Math.min(count, Math.min(s.length, q.length));
+                for (int i = 0; i < n; i++) if (s[i] == symbol) return q[i];
+                return 0;
+            }
+
+            // under an optimistic read the fields may be torn; null means retry under the read lock
+            Portfolio copy() {
+                int n = count;
+                int[] s = symbols;
+                long[] q = qty, c = cost;
+                if (n > s.length || n > q.length || n > c.length) return null;
+                return new Portfolio(userId, seq, lastTrade, cash,
+                        Arrays.copyOf(s, n), Arrays.copyOf(q, n), Arrays.copyOf(c, n));
+            }
+        }
+
+        Ledger(LedgerDAO dao, TradeDAO trades, SymbolRegistry symbols, long startingCash, long flushMs) {
+            this.dao = dao;
+            this.trades = trades;
+            this.symbols = symbols;
+            this.startingCash = startingCash;
+            this.flushMs = flushMs;
+            writer = new Thread(this::writeLoop, "ledger-writer");
+            writer.setDaemon(true);
+        }
+
+        /** Loads the persisted accounts, then re-applies trades committed after the last flush. */
+        void recover() throws SQLException {
+            for (Portfolio p : dao.loadAll(symbols)) accounts.put(p.userId, new Account(p));
+            persistedThrough = appliedThrough = dao.loadCursor();
+            long[] replayed = { 0 };
+            trades.forEachAfter(appliedThrough, t -> { apply(t); replayed[0]++; });
+            Metrics.add("ledger.replayedTrades", replayed[0]);
+        }
+
+        void start() { writer.start(); }
+
+        // set after recover() and before the projector starts delivering fills
+        void setPositionListener(PositionListener listener) { positions = listener; }
+
+        void forEach(Consumer<Portfolio> f) {
+            for (Account a : accounts.values()) f.accept(read(a));
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            writer.interrupt();
+            writer.join(5_000);
+        }
+
+        // projector thread, trades in id order
+        void onTrades(List<Trade> list) {
+            for (Trade t : list) apply(t);
+        }
+
+        private void apply(Trade t) {
+            int symbol = symbols.id(t.symbol);
+            // a self-match moves nothing
+            if (symbol >= 0 && t.buyerId != t.sellerId) {
+                long notional = t.price * t.qty;
+                post(t.buyerId, t.id, symbol, t.qty, notional, -notional);
+                post(t.sellerId, t.id, symbol, -t.qty, -notional, notional);
+            }
+            appliedThrough = t.id;
+            Metrics.increment("ledger.fills");
+        }
+
+        private void post(int userId, long tradeId, int symbol, long qty, long cost, long cash) {
+            Account a = accounts.computeIfAbsent(userId, id -> new Account(id, startingCash));
+            long stamp = a.lock.writeLock();
+            try {
+                if (tradeId <= a.lastTrade) return; // already in the persisted row
+                int i = a.slot(symbol);
+                a.qty[i] += qty;
+                a.cost[i] += cost;
+                a.cash += cash;
+                a.lastTrade = tradeId;
+                a.seq++;
+            } finally {
+                a.lock.unlockWrite(stamp);
+            }
+            if (a.queued.compareAndSet(false, true)) dirty.add(a);
+            PositionListener l = positions;
+            if (l != null) l.onFill(userId, symbol, qty, cost, cash);
+        }
+
+        Portfolio portfolio(int userId) {
+            Account a = accounts.get(userId);
+            if (a == null) return new Portfolio(userId, 0, 0, startingCash, new int[0], new long[0], new long[0]);
+            return read(a);
+        }
+
+        long cash(int userId) {
+            Account a = accounts.get(userId);
+            if (a == null) return startingCash;
+            long stamp = a.lock.tryOptimisticRead();
+            long cash = a.cash;
+            if (a.lock.validate(stamp)) return cash;
+            stamp = a.lock.readLock();
+            try {
+                return a.cash;
+            } finally {
+                a.lock.unlockRead(stamp);
+            }
+        }
+
+        long position(int userId, int symbol) {
+            Account a = accounts.get(userId);
+            if (a == null) return 0;
+            long stamp = a.lock.tryOptimisticRead();
+            long qty = a.qtyOf(symbol);
+            if (a.lock.validate(stamp)) return qty;
+            stamp = a.lock.readLock();
+            try {
+                return a.qtyOf(symbol);
+            } finally {
+                a.lock.unlockRead(stamp);
+            }
+        }
+
+        private static Portfolio read(Account a) {
+            long stamp = a.lock.tryOptimisticRead();
+            Portfolio p = a.copy();
+            if (p != null && a.lock.validate(stamp)) return p;
+            stamp = a.lock.readLock();
+            try {
+                return a.copy();
+            } finally {
+                a.lock.unlockRead(stamp);
+            }
+        }
+
+        private void writeLoop() {
+            while (running) {
+                try {
+                    Thread.sleep(flushMs);
+                } catch (InterruptedException e) {
+                    // stop(): fall through to the final flush
+                }
+                flush();
+            }
+        }
+
+        // the cursor is read before draining, so every trade up to it is in an account drained below
+        private void flush() {
+            long through = appliedThrough;
+            List<Account> batch = new ArrayList<>();
+            List<Portfolio> rows = new ArrayList<>();
+            for (Account a; (a = dirty.poll()) != null; ) {
+                a.queued.set(false);
+                Portfolio p = read(a);
+                if (p.seq == a.persistedSeq) continue;
+                batch.add(a);
+                rows.add(p);
+            }
+            if (rows.isEmpty() && through == persistedThrough) return;
+            long start = System.nanoTime();
+            try {
+                dao.save(rows, through, symbols);
+                for (int i = 0; i < rows.size(); i++) batch.get(i).persistedSeq = rows.get(i).seq;
+                persistedThrough = through;
+                Metrics.increment("ledger.flushes");
+                Metrics.add("ledger.flushedAccounts", rows.size());
+                Metrics.set("ledger.lastFlushMicros", (System.nanoTime() - start) / 1_000);
+            } catch (SQLException e) {
+                System.err.println("Ledger flush failed: " + e);
+                for (Account a : batch) {
+                    if (a.queued.compareAndSet(false, true)) dirty.add(a);
+                }
+            }
+        }
+    }
+
+    /* =============================
+       MARK TO MARKET
+       ============================= */
+    /**
+     * Live valuation of every ledger account. Each symbol keeps the list of
+     * accounts holding it, so a price change adds qty * (new - old) to those
+     * holders only and a fill moves one holder's quantity at the current
+     * mark. A portfolio's totals are one optimistic read no matter how many
+     * users hold a symbol. P&L is market value less net cost, realized and
+     * unrealized together, as the ledger keeps no average cost.
+     *
+     * Revaluation is O(holders), so it never runs on the publishing thread:
+     * a price change only flags its symbol, and the "mark-to-market" thread
+     * revalues each flagged symbol at its latest snapshot price. Ticks that
+     * arrive while it is busy coalesce into one pass per symbol, like
+     * PriceFeed; market values trail the snapshot by that one pass.
+     */
+    static final class MarkToMarket implements PriceListener, Runnable {
+        private final StockService service;
+        private final long startingCash;
+        private final Holders[] holders;
+        private final AtomicIntegerArray dirty; // 1 = symbol waiting for revaluation
+        private final ConcurrentHashMap<Integer, Account> accounts = new ConcurrentHashMap<>();
+        private final LongAdder ticks = Metrics.counter("mtm.ticks");
+        private final LongAdder revaluations = Metrics.counter("mtm.revaluations");
+        private final LongAdder remarks = Metrics.counter("mtm.holderUpdates");
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        static final class Account {
+            final StampedLock lock = new StampedLock();
+            long cash, cost, value; // ticks, under lock
+            // which slot this account occupies in each symbol's holders; fill thread only
+            int[] symbols = new int[4], slots = new int[4];
+            int count;
+
+            Account(long cash) { this.cash = cash; }
+
+            int find(int symbol) {
+                for (int i = 0; i < count; i++) if (symbols[i] == symbol) return i;
+                return -1;
+            }
+        }
+
+        /** Accounts with a non-zero position in one symbol and the price they are marked at; guarded by itself. */
+        static final class Holders {
+            long mark;
+            Account[] accounts = new Account[4];
+            long[] qty = new long[4];
+            int count;
+        }
+
+        /** One account's totals as of a single consistent read. */
+        static final class Valuation {
+            final long cash, cost, value;
+            Valuation(long cash, long cost, long value) { this.cash = cash; this.cost = cost; this.value = value; }
+            long equity() { return cash + value; }
+            long pnl() { return value - cost; }
+        }
+
+        MarkToMarket(StockService service, long startingCash) {
+            StockSnapshot snap = service.current();
+            this.service = service;
+            this.startingCash = startingCash;
+            holders = new Holders[snap.stocks.length];
+            dirty = new AtomicIntegerArray(holders.length);
+            for (int i = 0; i < holders.length; i++) {
+                holders[i] = new Holders();
+                holders[i].mark = snap.stocks[i].price;
+            }
+            thread = new Thread(this, "mark-to-market");
+            thread.setDaemon(true);
+        }
+
+        void start() { thread.start(); }
+
+        void stop() throws InterruptedException {
+            running = false;
+            LockSupport.unpark(thread);
+            thread.join(5_000);
+        }
+
+        /** Seeds every account from the recovered ledger; before any fill or tick is delivered. */
+        void load(Ledger ledger) {
+            ledger.forEach(p -> {
+                Account a = new Account(p.cash);
+                for (int i = 0; i < p.symbols.length; i++) {
+                    Holders h = holders[p.symbols[i]];
+                    a.cost += p.cost[i];
+                    a.value += p.qty[i] * h.mark;
+                    hold(h, a, p.symbols[i], p.qty[i]);
+                }
+                accounts.put(p.userId, a);
+            });
+        }
+
+        // publishing thread: only flags the symbol; index is the symbol id
+        @Override
+        public void onPrice(int index, Stock stock) {
+            ticks.increment();
+            if (index < dirty.length() && dirty.compareAndSet(index, 0, 1)) LockSupport.unpark(thread);
+        }
+
+        public void run() {
+            while (running) {
+                LockSupport.parkNanos(1_000_000_000L);
+                for (int i = 0; i < holders.length; i++) {
+                    // the flag is cleared before the price is read, so a tick in between costs a pass, never a miss
+                    if (dirty.get(i) != 0 && dirty.compareAndSet(i, 1, 0)) {
+                        revalue(i, service.current().stocks[i].price);
+                    }
+                }
+            }
+        }
+
+        private void revalue(int symbol, long price) {
+            Holders h = holders[symbol];
+            int n;
+            synchronized (h) {
+                long delta = price - h.mark;
+                h.mark = price;
+                n = delta == 0 ? 0 : h.count;
+                for (int i = 0; i < n; i++) {
+                    Account a = h.accounts[i];
+                    long stamp = a.lock.writeLock();
+                    a.value += h.qty[i] * delta;
+                    a.lock.unlockWrite(stamp);
+                }
+            }
+            revaluations.increment();
+            remarks.add(n);
+        }
+
+        // ledger position hook, projector thread: one side of a fill the ledger has just applied
+        void onFill(int userId, int symbol, long qty, long cost, long cash) {
+            Account a = accounts.computeIfAbsent(userId, id -> new Account(startingCash));
+            Holders h = holders[symbol];
+            synchronized (h) {
+                long stamp = a.lock.writeLock();
+                try {
+                    a.cash += cash;
+                    a.cost += cost;
+                    a.value += qty * h.mark;
+                } finally {
+                    a.lock.unlockWrite(stamp);
+                }
+                hold(h, a, symbol, qty);
+            }
+        }
+
+        // caller holds h (or is still loading); flat positions leave the list by swapping in the last holder
+        private static void hold(Holders h, Account a, int symbol, long qty) {
+            if (qty == 0) return;
+            int k = a.find(symbol);
+            if (k < 0) {
+                if (h.count == h.accounts.length) {
+                    h.accounts = Arrays.copyOf(h.accounts, h.count * 2);
+                    h.qty = Arrays.copyOf(h.qty, h.count * 2);
+                }
+                if (a.count == a.symbols.length) {
+                    a.symbols = Arrays.copyOf(a.symbols, a.count * 2);
+                    a.slots = Arrays.copyOf(a.slots, a.count * 2);
+                }
+                h.accounts[h.count] = a;
+                h.qty[h.count] = qty;
+                a.symbols[a.count] = symbol;
+                a.slots[a.count++] = h.count++;
+                return;
+            }
+            int slot = a.slots[k];
+            if ((h.qty[slot] += qty) != 0) return;
+            int last = --h.count;
+            Account moved = h.accounts[last];
+            h.accounts[slot] = moved;
+            h.qty[slot] = h.qty[last];
+            h.accounts[last] = null;
+            moved.slots[moved.find(symbol)] = slot;
+            a.symbols[k] = a.symbols[--a.count];
+            a.slots[k] = a.slots[a.count];
+        }
+
+        Valuation valuation(int userId) {
+            Account a = accounts.get(userId);
+            if (a == null) return new Valuation(startingCash, 0, 0);
+            long stamp = a.lock.tryOptimisticRead();
+            long cash = a.cash, cost = a.cost, value = a.value;
+            if (a.lock.validate(stamp)) return new Valuation(cash, cost, value);
+            stamp = a.lock.readLock();
+            try {
+                return new Valuation(a.cash, a.cost, a.value);
+            } finally {
+                a.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /* =============================
+       RISK
+       ============================= */
+    /**
+     * Pre-trade checks on the order path: order size, price band around the
+     * current Stock.price, position limit and buying power, all against
+     * memory. Accepting an order reserves its notional (buys) and quantity
+     * on the account; fills, cancels and unfilled market remainders release
+     * it, so open orders count against the limits without a DB lookup.
+     * Accounts are locked one at a time, so different users never contend.
+     */
+    static final class RiskEngine {
+        enum Reject {
+            ORDER_SIZE("orderSize"), PRICE_BAND("priceBand"), NO_REFERENCE_PRICE("noReferencePrice"),
+            POSITION_LIMIT("positionLimit"), BUYING_POWER("buyingPower");
+
+            final String reason;
+            final LongAdder count;
+
+            Reject(String reason) {
+                this.reason = reason;
+                this.count = Metrics.counter("risk.rejected." + reason);
+            }
+        }
+
+        private final Ledger ledger;
+        private final int symbolCount;
+        private final long maxOrderQty, maxPosition, bandBps;
+        private final ConcurrentHashMap<Integer, RiskAccount> accounts = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<Long, Reservation> open = new ConcurrentHashMap<>();
+        private final LongAdder checks = Metrics.counter("risk.checks");
+        private final LongAdder checkNanos = Metrics.counter("risk.check.nanos");
+
+        // limits are fixed when the account is first seen; reservations change under its monitor
+        static final class RiskAccount {
+            final long maxOrderQty, maxPosition;
+            long openBuyNotional;
+            final long[] openBuy, openSell; // by symbol id
+
+            RiskAccount(long maxOrderQty, long maxPosition, int symbols) {
+                this.maxOrderQty = maxOrderQty;
+                this.maxPosition = maxPosition;
+                openBuy = new long[symbols];
+                openSell = new long[symbols];
+            }
+        }
+
+        static final class Reservation {
+            final RiskAccount account; final int symbol; final byte side; final long price;
+            long remaining;
+            Reservation(RiskAccount account, int symbol, byte side, long price, long remaining) {
+                this.account = account; this.symbol = symbol; this.side = side;
+                this.price = price; this.remaining = remaining;
+            }
+        }
+
+        RiskEngine(Ledger ledger, int symbolCount, long maxOrderQty, long maxPosition, long bandBps) {
+            this.ledger = ledger;
+            this.symbolCount = symbolCount;
+            this.maxOrderQty = maxOrderQty;
+            this.maxPosition = maxPosition;
+            this.bandBps = bandBps;
+        }
+
+        private RiskAccount account(int userId) {
+            return accounts.computeIfAbsent(userId, id -> new RiskAccount(maxOrderQty, maxPosition, symbolCount));
+        }
+
+        /**
+         * Returns the failed check, or null after reserving the order. A
+         * market buy is reserved at the top of the band, its worst fill; a
+         * market order on a symbol with no reference price has no worst
+         * fill and is rejected.
+         */
+        Reject check(long orderId, int userId, int symbol, byte side, byte type, long limit, long qty, long ref) {
+            long start = System.nanoTime();
+            Reject reject = checkAndReserve(orderId, userId, symbol, side, type, limit, qty, ref);
+            checkNanos.add(System.nanoTime() - start);
+            checks.increment();
+            if (reject != null) reject.count.increment();
+            return reject;
+        }
+
+        private Reject checkAndReserve(long orderId, int userId, int symbol, byte side, byte type,
+                                       long limit, long qty, long ref) {
+            RiskAccount a = account(userId);
+            if (qty > a.maxOrderQty) return Reject.ORDER_SIZE;
+            if (type == MARKET && ref <= 0) return Reject.NO_REFERENCE_PRICE;
+            long band = bandBps > 0 && ref > 0 ? ref * bandBps / 10_000 : -1;
+            if (type == LIMIT && band >= 0 && (limit < ref - band || limit > ref + band)) return Reject.PRICE_BAND;
+            long price = type == LIMIT ? limit : band >= 0 ? ref + band : ref;
+            synchronized (a) {
+                long position = ledger.position(userId, symbol);
+                if (side == BUY ? position + a.openBuy[symbol] + qty > a.maxPosition
+                                : position - a.openSell[symbol] - qty < -a.maxPosition) {
+                    return Reject.POSITION_LIMIT;
+                }
+                if (side == BUY && a.openBuyNotional + price * qty > ledger.cash(userId)) return Reject.BUYING_POWER;
+                reserve(a, symbol, side, price, qty);
+            }
+            open.put(orderId, new Reservation(a, symbol, side, price, qty));
+            return null;
+        }
+
+        // caller holds the account monitor; qty is negative on release
+        private static void reserve(RiskAccount a, int symbol, byte side, long price, long qty) {
+            if (side == BUY) {
+                a.openBuyNotional += price * qty;
+                a.openBuy[symbol] += qty;
+            } else {
+                a.openSell[symbol] += qty;
+            }
+        }
+
+        /** A resting order found in a recovered book. */
+        void restore(long orderId, int userId, int symbol, byte side, long price, long remaining) {
+            RiskAccount a = account(userId);
+            synchronized (a) {
+                reserve(a, symbol, side, price, remaining);
+            }
+            open.put(orderId, new Reservation(a, symbol, side, price, remaining));
+        }
+
+        // matching thread: whatever will never rest or fill is released now, fills come through onTrades
+        void submitted(long orderId, long qty, OrderResult res) {
+            if (res == null || res.status == OrderStatus.REJECTED) release(orderId, qty);
+            else if (res.status == OrderStatus.CANCELLED) release(orderId, qty - res.filledQty);
+        }
+
+        // trades matched before recovery are already netted out of the restored reservations
+        void onTrades(List<Trade> trades) {
+            for (Trade t : trades) {
+                if (t.recovered) continue;
+                release(t.buyOrder, t.qty);
+                release(t.sellOrder, t.qty);
+            }
+        }
+
+        void release(long orderId, long qty) {
+            Reservation r = open.get(orderId);
+            if (r == null) return;
+            synchronized (r.account) {
+                long q = Math.min(qty, r.remaining);
+                if (q <= 0) return;
+                r.remaining -= q;
+                reserve(r.account, r.symbol, r.side, r.price, -q);
+                if (r.remaining == 0) open.remove(orderId);
+            }
+        }
+    }
+
+    /* =============================
+       PRICE STREAMING
+       ============================= */
+    /**
+     * Notified after every published price change, on the publishing thread
+     * and outside any lock. Publishers race, so calls for one symbol can
+     * arrive out of order: treat a call as "this symbol changed" and take
+     * the price from the current snapshot.
+     */
+    public interface PriceListener {
+        void onPrice(int index, Stock stock);
+    }
+
+    /**
+     * Fan-out hub for price ticks. Publishers only stamp the latest price per
+     * symbol with a sequence number; a single dispatcher thread wakes at most
+     * once per interval and sends each subscriber what changed since it was
+     * last written to, so a slow client gets the latest price per symbol
+     * instead of a backlog.
+     */
+    public static final class PriceFeed implements PriceListener, Runnable {
+        private static final long HEARTBEAT_NANOS = TimeUnit.SECONDS.toNanos(15);
+        private static final byte[] HEARTBEAT = ": ping\n\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final StockService service;
+        private final SymbolRegistry registry;
+        private final String[] symbols;
+        private final AtomicLongArray seqs;
+        private final AtomicLong clock = new AtomicLong();
+        private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+        private static final byte[] NO_DELTA = new byte[0];
+        private byte[] sseDelta = NO_DELTA;
+        private long sseDeltaRound = -1;
+        private final long intervalNanos;
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        // prices are always read from the service's current snapshot, never cached here
+        public PriceFeed(StockService service, long intervalMillis) {
+            StockSnapshot snap = service.current();
+            int n = snap.stocks.length;
+            this.service = service;
+            registry = snap.registry;
+            symbols = new String[n];
+            seqs = new AtomicLongArray(n);
+            for (int i = 0; i < n; i++) symbols[i] = snap.stocks[i].symbol;
+            intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+            thread = new Thread(this, "price-feed");
+            thread.setDaemon(true);
+        }
+
+        public void start() { thread.start(); }
+
+        public void stop() { running = false; LockSupport.unpark(thread); }
+
+        public int subscriberCount() { return subscribers.size(); }
+
+        /** A connection fed by the dispatcher thread; flush is never called concurrently. */
+        interface Subscriber {
+            void flush(long prevRound, long round, boolean heartbeat);
+        }
+
+        int symbolCount() { return symbols.length; }
+
+        String symbolAt(int i) { return symbols[i]; }
+
+        byte[] symbolBytesAt(int i) { return registry.bytes(i); }
+
+        long seqAt(int i) { return seqs.get(i); }
+
+        long priceAt(int i) { return service.current().stocks[i].price; }
+
+        int indexOf(String symbol) { return registry.id(symbol); }
+
+        public void onPrice(int index, Stock stock) {
+            if (index >= symbols.length || !symbols[index].equals(stock.symbol)) return;
+            seqs.set(index, clock.incrementAndGet());
+        }
+
+        void subscribe(Subscriber sub) {
+            subscribers.add(sub);
+            LockSupport.unpark(thread);
+        }
+
+        void unsubscribe(Subscriber sub) { subscribers.remove(sub); }
+
+        void wake() { LockSupport.unpark(thread); }
+
+        public void run() {
+            long round = 0;
+            long lastBeat = System.nanoTime();
+            while (running) {
+                LockSupport.parkNanos(intervalNanos);
+                long now = clock.get();
+                if (subscribers.isEmpty()) {
+                    round = now;
+                    continue;
+                }
+                boolean beat = System.nanoTime() - lastBeat > HEARTBEAT_NANOS;
+                if (beat) lastBeat = System.nanoTime();
+                for (Subscriber sub : subscribers) {
+                    sub.flush(round, now, beat);
+                }
+                round = now;
+            }
+        }
+
+        // SSE text for one round, encoded once and shared by every up-to-date subscriber
+        byte[] sseDelta(long prevRound, long round) {
+            // an idle round has nothing new; the cached delta is for the round that last moved the clock
+            if (round == prevRound) return NO_DELTA;
+            if (sseDeltaRound != round) {
+                sseDelta = encodeSince(prevRound);
+                sseDeltaRound = round;
+            }
+            return sseDelta;
+        }
+
+        byte[] encodeSince(long seq) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Stock[] stocks = service.current().stocks;
+            for (int i = 0; i < symbols.length; i++) {
+                if (seqs.get(i) > seq) {
+                    String event = "data: {\"symbol\":\"" + symbols[i] + "\",\"price\":"
+                            + formatTicks(stocks[i].price) + "}\n\n";
+                    out.writeBytes(event.getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** One SSE connection. Only the PriceFeed dispatcher thread writes to it. */
+    static final class SseSubscriber implements PriceFeed.Subscriber, WriteListener, AsyncListener {
+        private final AsyncContext ctx;
+        private final ServletOutputStream out;
+        private final PriceFeed feed;
+        private long sentThrough = -1;
+        private volatile boolean closed;
+
+        SseSubscriber(AsyncContext ctx, ServletOutputStream out, PriceFeed feed) {
+            this.ctx = ctx;
+            this.out = out;
+            this.feed = feed;
+        }
+
+        public void flush(long prevRound, long round, boolean beat) {
+            if (closed) return;
+            try {
+                // not ready: the previous write is still draining, so skip and catch up later
+                if (!out.isReady()) return;
+                byte[] data = sentThrough == prevRound
+                        ? feed.sseDelta(prevRound, round) : feed.encodeSince(sentThrough);
+                if (data.length == 0 && !beat) {
+                    sentThrough = round;
+                    return;
+                }
+                out.write(data.length > 0 ? data : PriceFeed.HEARTBEAT);
+                sentThrough = round;
+                if (out.isReady()) out.flush();
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed) return;
+            closed = true;
+            feed.unsubscribe(this);
+            try {
+                ctx.complete();
+            } catch (IllegalStateException ignored) {
+                // already completed by the container
+            }
+        }
+
+        public void onWritePossible() { feed.wake(); }
+        public void onError(Throwable t) { close(); }
+        public void onComplete(AsyncEvent e) { close(); }
+        public void onTimeout(AsyncEvent e) { close(); }
+        public void onError(AsyncEvent e) { close(); }
+        public void onStartAsync(AsyncEvent e) { }
+    }
+
+    /* =============================
+       WEBSOCKET GATEWAY
+       ============================= */
+    /**
+     * Binary order-entry and quote socket on /ws. The upgrade request must
+     * carry the signed AUTH cookie that LoginServlet issued; TokenAuthority
+     * verifies it the same way AuthFilter does for HTTP, and the socket acts
+     * as that token's user. The token is checked again for every order and
+     * cancel, so once it expires or is revoked by logout the socket is
+     * closed. All integers are big-endian and symbols are [u8 length][ASCII bytes].
+     *
+     * Client to server:
+     *   0x01 SUBSCRIBE   [symbol]           (empty symbol = all symbols)
+     *   0x02 UNSUBSCRIBE [symbol]
+     *   0x03 NEW_ORDER   [i64 tag][u8 side][u8 type][i64 price ticks][i64 qty][symbol]
+     *   0x04 CANCEL      [i64 tag][i64 order id][symbol]
+     *
+     * Server to client:
+     *   0x81 QUOTES      [u32 count] then count x [symbol][i64 price ticks]
+     *   0x82 EXEC_REPORT [i64 tag][i64 order id][u8 status][i64 filled][i64 open][i64 last ticks]
+     *   0x83 REJECT      [i64 tag][u16 length][UTF-8 reason]
+     */
+    public static class TradingSocket implements WebSocketListener, PriceFeed.Subscriber {
+        static final byte SUBSCRIBE = 1, UNSUBSCRIBE = 2, NEW_ORDER = 3, CANCEL_ORDER = 4;
+        static final byte QUOTES = (byte) 0x81, EXEC_REPORT = (byte) 0x82, REJECT = (byte) 0x83;
+
+        private final AuthToken user;
+        private final int userId;
+        private final TokenAuthority authority;
+        private final StockService service;
+        private final PriceFeed feed;
+        private final AtomicBoolean quotesInFlight = new AtomicBoolean();
+        private final WriteCallback quotesSent = new WriteCallback() {
+            public void writeSuccess() { quotesInFlight.set(false); }
+            public void writeFailed(Throwable t) { quotesInFlight.set(false); }
+        };
+        private volatile Session session;
+        private volatile boolean[] subscribed;
+        private volatile boolean resync;
+        private long sentThrough;
+
+        TradingSocket(AuthToken user, TokenAuthority authority, StockService service, PriceFeed feed) {
+            this.user = user;
+            this.userId = user.userId;
+            this.authority = authority;
+            this.service = service;
+            this.feed = feed;
+            this.subscribed = new boolean[feed.symbolCount()];
+        }
+
+        // Upgrade only requests that carry a valid login token
+        static Object create(JettyServerUpgradeRequest req, JettyServerUpgradeResponse resp) {
+            AuthToken user = tokens.fromCookies(req.getHttpServletRequest().getCookies());
+            if (user == null) {
+                try {
+                    resp.sendForbidden("Login required");
+                } catch (IOException ignored) {
+                    // connection is going away anyway
+                }
+                return null;
+            }
+            return new TradingSocket(user, tokens, stockService, priceFeed);
+        }
+
+        public void onWebSocketConnect(Session s) {
+            session = s;
+            feed.subscribe(this);
+        }
+
+        public void onWebSocketClose(int status, String reason) {
+            feed.unsubscribe(this);
+            session = null;
+        }
+
+        public void onWebSocketError(Throwable cause) {
+            feed.unsubscribe(this);
+        }
+
+        public void onWebSocketText(String message) {
+            reject(0, "Binary frames only");
+        }
+
+        public void onWebSocketBinary(byte[] payload, int offset, int len) {
+            ByteBuffer in = ByteBuffer.wrap(payload, offset, len);
+            try {
+                switch (in.get()) {
+                    case SUBSCRIBE: subscribe(in, true); break;
+                    case UNSUBSCRIBE: subscribe(in, false); break;
+                    case NEW_ORDER: {
+                        long tag = in.getLong();
+                        if (!loggedIn(tag)) break;
+                        byte side = in.get(), type = in.get();
+                        long price = in.getLong(), qty = in.getLong();
+                        service.submitOrder(readSymbol(in), userId, side, type, price, qty)
+                               .whenComplete((res, err) -> report(tag, res, err));
+                        break;
+                    }
+                    case CANCEL_ORDER: {
+                        long tag = in.getLong(), orderId = in.getLong();
+                        if (!loggedIn(tag)) break;
+                        service.cancelOrder(readSymbol(in), userId, orderId)
+                               .whenComplete((res, err) -> report(tag, res, err));
+                        break;
+                    }
+                    default: reject(0, "Unknown message type");
+                }
+            } catch (BufferUnderflowException e) {
+                reject(0, "Truncated frame");
+            }
+        }
+
+        // the upgrade checked the token once; logout or expiry since then ends the socket
+        private boolean loggedIn(long tag) {
+            if (authority.isLive(user)) return true;
+            reject(tag, "Login expired");
+            Session s = session;
+            if (s != null) s.close(StatusCode.POLICY_VIOLATION, "Login expired");
+            return false;
+        }
+
+        // an empty symbol means every symbol
+        private void subscribe(ByteBuffer in, boolean on) {
+            boolean all = in.hasRemaining() && in.get(in.position()) == 0;
+            int i = readSymbol(in);
+            boolean[] next = subscribed.clone();
+            if (all) {
+                Arrays.fill(next, on);
+            } else {
+                if (i < 0) { reject(0, "Unknown symbol"); return; }
+                next[i] = on;
+            }
+            subscribed = next;
+            // newly subscribed symbols get their current price on the next round
+            if (on) resync = true;
+        }
+
+        public void flush(long prevRound, long round, boolean heartbeat) {
+            Session s = session;
+            if (s == null || !s.isOpen()) return;
+            // a slow socket keeps its previous frame; the next one carries the latest prices
+            if (!quotesInFlight.compareAndSet(false, true)) return;
+            long since = resync ? -1 : sentThrough;
+            resync = false;
+            boolean[] subs = subscribed;
+            ByteBuffer out = ByteBuffer.allocate(5 + subs.length * 20);
+            out.put(QUOTES).putInt(0);
+            int count = 0;
+            for (int i = 0; i < subs.length; i++) {
+                if (subs[i] && feed.seqAt(i) > since) {
+                    byte[] symbol = feed.symbolBytesAt(i);
+                    out.put((byte) symbol.length).put(symbol);
+                    out.putLong(feed.priceAt(i));
+                    count++;
+                }
+            }
+            sentThrough = round;
+            if (count == 0) { quotesInFlight.set(false); return; }
+            out.putInt(1, count).flip();
+            s.getRemote().sendBytes(out, quotesSent);
+        }
+
+        private void report(long tag, OrderResult res, Throwable err) {
+            if (err != null) { reject(tag, String.valueOf(err.getMessage())); return; }
+            ByteBuffer out = ByteBuffer.allocate(42);
+            out.put(EXEC_REPORT).putLong(tag).putLong(res.orderId).put((byte) res.status.ordinal())
+               .putLong(res.filledQty).putLong(res.openQty).putLong(res.lastPrice).flip();
+            send(out);
+        }
+
+        private void reject(long tag, String reason) {
+            byte[] msg = reason.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer out = ByteBuffer.allocate(11 + msg.length);
+            out.put(REJECT).putLong(tag).putShort((short) msg.length).put(msg).flip();
+            send(out);
+        }
+
+        private void send(ByteBuffer frame) {
+            Session s = session;
+            if (s != null && s.isOpen()) s.getRemote().sendBytes(frame, WriteCallback.NOOP);
+        }
+
+        // symbol id of a length-prefixed name, -1 when unknown
+        private int readSymbol(ByteBuffer in) {
+            int len = in.get() & 0xFF, from = in.position();
+            if (len > in.remaining()) throw new BufferUnderflowException();
+            in.position(from + len);
+            return feed.registry.id(in, from, from + len);
+        }
+    }
+
+    /* =============================
+       SERVICE LAYER
+       ============================= */
+
+    public static class UserService {
+        private final UserDAO dao;
+
+        // production
+        public UserService(DataSource ds) {
+            this.dao = new UserDAO(ds);
+        }
+
+        // REVIEW-2: constructor injection for unit tests
+        UserService(UserDAO dao) {
+            this.dao = dao;
+        }
+
+        public Optional<User> findUser(String u) throws SQLException {
+            return dao.findByUsername(u);
+        }
+
+        public Optional<User> authenticate(String u, String p) throws SQLException {
+            Optional<User> opt = dao.findByUsername(u);
+            if (opt.isPresent() && passwordMatches(p, opt.get().getPassword())) {
+                return opt;
+            }
+            return Optional.empty();
+        }
+
+        /**
+         * Checks the password of an already loaded user on the verifier pool.
+         * Completes exceptionally with RejectedExecutionException when the
+         * pool's queue is full; unknown users complete at once.
+         */
+        public CompletableFuture<Optional<User>> verifyAsync(Optional<User> user, String plain,
+                                                             ThreadPoolExecutor verifier) {
+            if (user.isEmpty()) return CompletableFuture.completedFuture(Optional.empty());
+            CompletableFuture<Optional<User>> done = new CompletableFuture<>();
+            long queued = System.nanoTime();
+            try {
+                verifier.execute(() -> {
+                    long start = System.nanoTime();
+                    try {
+                        boolean ok = passwordMatches(plain, user.get().getPassword());
+                        done.complete(ok ? user : Optional.empty());
+                    } catch (RuntimeException e) {
+                        done.completeExceptionally(e);
+                    } finally {
+                        long end = System.nanoTime();
+                        Metrics.increment("login.verify.count");
+                        Metrics.add("login.verify.micros", (end - start) / 1_000);
+                        Metrics.add("login.queueWait.micros", (start - queued) / 1_000);
+                        Metrics.set("login.queueDepth", verifier.getQueue().size());
+                    }
+                });
+                Metrics.set("login.queueDepth", verifier.getQueue().size());
+            } catch (RejectedExecutionException e) {
+                Metrics.increment("login.rejected");
+                done.completeExceptionally(e);
+            }
+            return done;
+        }
+
+        // REVIEW-2: isolated logic for testing
+        boolean passwordMatches(String plain, String hashed) {
+            return BCrypt.checkpw(plain, hashed);
+        }
+    }
+
+    /**
+     * Immutable, symbol-sorted view of the stocks table. A new instance is
+     * published for every committed price change; readers never lock.
+     */
+    public static final class StockSnapshot {
+        final long version;
+        final Stock[] stocks;
+        final List<Stock> view;
+        // escaped UTF-8 symbol bytes for StockRenderer; carried over while the symbol set is unchanged
+        final byte[][] htmlSymbols;
+        final byte[][] jsonSymbols;
+        // snapshot version at which each symbol last changed (per-symbol ETags)
+        final long[] symbolVersions;
+        // symbol id == index into stocks
+        final SymbolRegistry registry;
+
+        StockSnapshot(long version, Stock[] stocks) {
+            this(version, stocks, new SymbolRegistry(stocks),
+                    new byte[stocks.length][], new byte[stocks.length][], new long[stocks.length]);
+            Arrays.fill(symbolVersions, version);
+            for (int i = 0; i < stocks.length; i++) {
+                htmlSymbols[i] = StockRenderer.htmlEscaped(stocks[i].symbol);
+                jsonSymbols[i] = StockRenderer.jsonEscaped(stocks[i].symbol);
+            }
+        }
+
+        // price-only change of the given indexes: same symbols at the same positions
+        StockSnapshot(long version, Stock[] stocks, StockSnapshot prev, int... changed) {
+            this(version, stocks, prev.registry, prev.htmlSymbols, prev.jsonSymbols, prev.symbolVersions.clone());
+            for (int i : changed) symbolVersions[i] = version;
+        }
+
+        private StockSnapshot(long version, Stock[] stocks, SymbolRegistry registry, byte[][] htmlSymbols,
+                              byte[][] jsonSymbols, long[] symbolVersions) {
+            this.version = version;
+            this.stocks = stocks;
+            this.registry = registry;
+            this.view = Collections.unmodifiableList(Arrays.asList(stocks));
+            this.htmlSymbols = htmlSymbols;
+            this.jsonSymbols = jsonSymbols;
+            this.symbolVersions = symbolVersions;
+        }
+
+        int indexOfSymbol(String symbol) { return registry.id(symbol); }
+
+        int indexOfId(int id) {
+            for (int i = 0; i < stocks.length; i++) {
+                if (stocks[i].id == id) return i;
+            }
+            return -1;
+        }
+    }
+
+    public static class StockService {
+        private final StockDAO dao;
+        private final Object reloadLock = new Object();
+        private final AtomicReference<StockSnapshot> snapshot = new AtomicReference<>();
+        private final List<PriceListener> priceListeners = new CopyOnWriteArrayList<>();
+        private final List<Consumer<List<Trade>>> tradeListeners = new CopyOnWriteArrayList<>();
+        private RiskEngine risk;
+        private final AtomicLong orderIds = new AtomicLong();
+        private final TradeDAO tradeDao;
+        private MatchingShard[] shards = new MatchingShard[0];
+        private SymbolRegistry symbols = new SymbolRegistry(new Stock[0]);
+        private MatchingShard[] shardBySymbol = new MatchingShard[0];
+        private JournalProjector projector;
+
+        public StockService(DataSource ds) {
+            dao = new StockDAO(ds);
+            tradeDao = new TradeDAO(ds);
+        }
+
+        /**
+         * Pins every symbol in the stocks table to one of shardCount matching
+         * threads, replays each shard's journal into its books and only then
+         * returns, so callers can start serving once this completes.
+         */
+        public void start(Path journalDir, Path snapshotDir, int shardCount, int queueCapacity)
+                throws SQLException, IOException {
+            StockSnapshot snap = snapshot();
+            SymbolRegistry registry = snap.registry;
+            int n = journalLayout(journalDir, Math.max(1, Math.min(shardCount, registry.size())));
+            MatchingShard[] created = new MatchingShard[n];
+            MatchingShard[] pinned = new MatchingShard[registry.size()];
+            for (int i = 0; i < n; i++) {
+                created[i] = new MatchingShard(i, this, registry,
+                        new Journal(journalDir, i, JOURNAL_SEGMENT_BYTES, JOURNAL_FSYNC),
+                        snapshotDir, queueCapacity);
+            }
+            for (int id = 0; id < registry.size(); id++) {
+                // String.hashCode is specified, so a symbol stays on the shard that journaled it
+                MatchingShard shard = created[Math.floorMod(registry.symbol(id).hashCode(), n)];
+                shard.addBook(id);
+                pinned[id] = shard;
+            }
+            List<CompletableFuture<Long>> recovering = new ArrayList<>();
+            for (MatchingShard shard : created) recovering.add(shard.start());
+            for (CompletableFuture<Long> r : recovering) {
+                try {
+                    long maxId = r.get();
+                    orderIds.accumulateAndGet(maxId, Math::max);
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("Journal recovery failed", e);
+                }
+            }
+            // resting orders recovered into the books hold their reservations again
+            if (risk != null) {
+                for (MatchingShard shard : created) shard.forEachResting(risk);
+            }
+            shards = created;
+            symbols = registry;
+            shardBySymbol = pinned;
+            projector = new JournalProjector(tradeDao, journalDir, created, registry, this::tradesProjected);
+            projector.start();
+        }
+
+        // The shard count is fixed by the first run so journals stay with their symbols
+        private static int journalLayout(Path dir, int requested) throws IOException {
+            Files.createDirectories(dir);
+            Path layout = dir.resolve("layout");
+            if (Files.exists(layout)) {
+                int n = Integer.parseInt(Files.readString(layout).trim());
+                if (n != requested) {
+                    System.out.println("Journal was written with " + n + " shards; ignoring matching.shards=" + requested);
+                }
+                return n;
+            }
+            Files.writeString(layout, Integer.toString(requested));
+            return requested;
+        }
+
+        public void stop() throws InterruptedException {
+            for (MatchingShard shard : shards) shard.stop();
+            if (projector != null) projector.stop();
+        }
+
+        // Until the projector is running nothing may be pruned
+        long projectedSegment(int shard) {
+            JournalProjector p = projector;
+            return p == null ? 0 : p.projectedSegment(shard);
+        }
+
+        // Served from the in-memory snapshot; only the first call touches JDBC
+        public List<Stock> getAllStocks() throws SQLException { return snapshot().view; }
+
+        public StockSnapshot snapshot() throws SQLException {
+            StockSnapshot snap = snapshot.get();
+            return snap != null ? snap : reload();
+        }
+
+        // never null once snapshot() has loaded it, which main does before building anything on top
+        StockSnapshot current() { return snapshot.get(); }
+
+        public StockSnapshot reload() throws SQLException {
+            synchronized (reloadLock) {
+                StockSnapshot cur = snapshot.get();
+                StockSnapshot next = new StockSnapshot(cur == null ? 1 : cur.version + 1,
+                        dao.findAll().toArray(new Stock[0]));
+                snapshot.set(next);
+                return next;
+            }
+        }
+
+        // Write-through: the snapshot is replaced only after the DAO has committed, and no lock is held over JDBC.
+        // Returns the number of rows updated.
+        public int updatePrice(int id, long p) throws SQLException {
+            int updated = dao.updatePriceTransactional(id, p);
+            if (updated == 0) return 0;
+            StockSnapshot cur = snapshot();
+            int i = cur.indexOfId(id);
+            if (i < 0) { reload(); return updated; }
+            publish(new int[] { i }, new long[] { p }, 1);
+            return updated;
+        }
+
+        // Called by a matching shard after each batch; the DB copy comes from the journal projector
+        void publishTradePrice(String symbol, long p) {
+            StockSnapshot cur = snapshot.get();
+            int i = cur == null ? -1 : cur.indexOfSymbol(symbol);
+            if (i < 0) return;
+            publish(new int[] { i }, new long[] { p }, 1);
+        }
+
+        /**
+         * Installs new prices by compare-and-set on the snapshot reference,
+         * rebuilding from whichever snapshot won if another publisher got in
+         * first, then tells the listeners. No lock is taken, so a matching
+         * shard never waits on the feed, a DB writer or a listener.
+         */
+        private void publish(int[] index, long[] prices, int n) {
+            StockSnapshot cur, next;
+            do {
+                cur = snapshot.get();
+                Stock[] stocks = cur.stocks.clone();
+                for (int k = 0; k < n; k++) {
+                    Stock old = stocks[index[k]];
+                    stocks[index[k]] = new Stock(old.id, old.symbol, old.name, prices[k]);
+                }
+                next = new StockSnapshot(cur.version + 1, stocks, cur, Arrays.copyOf(index, n));
+            } while (!snapshot.compareAndSet(cur, next));
+            for (PriceListener l : priceListeners) {
+                for (int k = 0; k < n; k++) l.onPrice(index[k], next.stocks[index[k]]);
+            }
+        }
+
+        /**
+         * Batch write-through: one transaction for the whole list, then a
+         * single new snapshot covering every changed symbol. Returns the
+         * number of rows updated. The JDBC batch runs without any lock, so a
+         * slow commit delays only its caller; the snapshot swap and listener
+         * calls are the lock-free publish the matching shards use.
+         */
+        public int updatePrices(List<Map.Entry<String, Long>> updates, int chunk) throws SQLException {
+            // symbols resolve to primary keys through the snapshot; unknown ones never reach the DB
+            StockSnapshot cur = snapshot();
+            int[] index = new int[updates.size()];
+            int[] ids = new int[updates.size()];
+            long[] prices = new long[updates.size()];
+            int n = 0;
+            for (Map.Entry<String, Long> u : updates) {
+                int i = cur.indexOfSymbol(u.getKey());
+                if (i < 0) continue;
+                index[n] = i;
+                ids[n] = cur.stocks[i].id;
+                prices[n++] = u.getValue();
+            }
+            if (n == 0) return 0;
+            int[] counts = dao.updatePricesBatch(ids, prices, n, chunk);
+            int updated = 0, c = 0;
+            for (int k = 0; k < n; k++) {
+                if (counts[k] == 0) continue;
+                updated += counts[k];
+                index[c] = index[k];
+                prices[c++] = prices[k];
+            }
+            if (c > 0) publish(index, prices, c);
+            return updated;
+        }
+
+        public void addPriceListener(PriceListener listener) { priceListeners.add(listener); }
+
+        // committed trades, called on the projector thread after they reach the trades table
+        public void addTradeListener(Consumer<List<Trade>> listener) { tradeListeners.add(listener); }
+
+        // set before start() so recovered resting orders are reserved
+        public void setRiskEngine(RiskEngine engine) { risk = engine; }
+
+        private void tradesProjected(List<Trade> trades) {
+            for (Consumer<List<Trade>> l : tradeListeners) l.accept(trades);
+        }
+
+        /**
+         * Symbol ids fixed when the books were started; the symbol set, and
+         * so every array indexed by it, stays the same for the process lifetime.
+         */
+        public SymbolRegistry symbols() { return symbols; }
+
+        public CompletableFuture<OrderResult> submitOrder(String symbol, int userId, byte side, byte type,
+                                                          long priceTicks, long qty) {
+            return submitOrder(symbols.id(symbol), userId, side, type, priceTicks, qty);
+        }
+
+        /** Hands the order to its symbol's shard; the future completes once it has been matched. */
+        public CompletableFuture<OrderResult> submitOrder(int symbol, int userId, byte side, byte type,
+                                                          long priceTicks, long qty) {
+            MatchingShard shard = shardOf(symbol);
+            if (shard == null || qty <= 0 || (side != BUY && side != SELL)
+                    || (type != LIMIT && type != MARKET) || (type == LIMIT && priceTicks <= 0)) {
+                return CompletableFuture.completedFuture(OrderResult.rejected());
+            }
+            long orderId = orderIds.incrementAndGet();
+            long price = type == LIMIT ? priceTicks : 0;
+            RiskEngine r = risk;
+            if (r == null) {
+                return dispatch(shard, new OrderCommand(OrderCommand.SUBMIT, symbol, userId, side, type,
+                        price, qty, orderId));
+            }
+            RiskEngine.Reject reject = r.check(orderId, userId, symbol, side, type, price, qty,
+                    snapshot.get().stocks[symbol].price);
+            if (reject != null) return CompletableFuture.completedFuture(OrderResult.rejected(reject.reason));
+            CompletableFuture<OrderResult> done = dispatch(shard, new OrderCommand(OrderCommand.SUBMIT, symbol,
+                    userId, side, type, price, qty, orderId));
+            done.whenComplete((res, err) -> r.submitted(orderId, qty, res));
+            return done;
+        }
+
+        public CompletableFuture<OrderResult> cancelOrder(String symbol, int userId, long orderId) {
+            return cancelOrder(symbols.id(symbol), userId, orderId);
+        }
+
+        public CompletableFuture<OrderResult> cancelOrder(int symbol, int userId, long orderId) {
+            MatchingShard shard = shardOf(symbol);
+            if (shard == null) return CompletableFuture.completedFuture(OrderResult.rejected());
+            CompletableFuture<OrderResult> done = dispatch(shard, new OrderCommand(OrderCommand.CANCEL, symbol,
+                    userId, BUY, LIMIT, 0, 0, orderId));
+            RiskEngine r = risk;
+            if (r != null) {
+                done.whenComplete((res, err) -> {
+                    if (res != null && res.status == OrderStatus.CANCELLED) r.release(orderId, res.openQty);
+                });
+            }
+            return done;
+        }
+
+        private MatchingShard shardOf(int symbol) {
+            MatchingShard[] pinned = shardBySymbol;
+            return symbol >= 0 && symbol < pinned.length ? pinned[symbol] : null;
+        }
+
+        private static CompletableFuture<OrderResult> dispatch(MatchingShard shard, OrderCommand cmd) {
+            if (!shard.offer(cmd)) {
+                cmd.done.completeExceptionally(
+                        new RejectedExecutionException("Matching shard " + shard.index + " is full"));
+            }
+            return cmd.done;
+        }
+    }
+
+    /* =============================
+       AUTH FILTER
+       ============================= */
+    /**
+     * Signed, self-contained login token. The cookie value is
+     * base64url("userId:roles:expiresAt:jti:username") + "." + base64url(HMAC-SHA256),
+     * so any node holding the same auth.secret can verify it without a
+     * server-side session, a DB lookup or BCrypt.
+     */
+    public static final class AuthToken {
+        static final String ATTR = "principal";
+
+        final int userId;
+        final String username;
+        final String roles;
+        final long expiresAt;
+        final long jti;
+
+        AuthToken(int userId, String username, String roles, long expiresAt, long jti) {
+            this.userId = userId;
+            this.username = username;
+            this.roles = roles;
+            this.expiresAt = expiresAt;
+            this.jti = jti;
+        }
+
+        boolean hasRole(String role) {
+            return Arrays.asList(roles.split(",")).contains(role);
+        }
+    }
+
+    public static final class TokenAuthority {
+        static final String COOKIE = "AUTH";
+
+        private final SecretKeySpec key;
+        private final long ttlMillis;
+        private final ThreadLocal<Mac> macs;
+        // jti -> expiresAt; entries drop out once the token would have expired anyway
+        private final ConcurrentHashMap<Long, Long> revoked = new ConcurrentHashMap<>();
+
+        TokenAuthority(byte[] secret, long ttlMillis) {
+            this.key = new SecretKeySpec(secret, "HmacSHA256");
+            this.ttlMillis = ttlMillis;
+            this.macs = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+
+        String issue(User u, String roles) {
+            long jti = ThreadLocalRandom.current().nextLong();
+            String payload = u.getId() + ":" + roles + ":" + (System.currentTimeMillis() + ttlMillis)
+                    + ":" + jti + ":" + u.getUsername();
+            byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+            Base64.Encoder b64 = Base64.getUrlEncoder().withoutPadding();
+            return b64.encodeToString(body) + "." + b64.encodeToString(macs.get().doFinal(body));
+        }
+
+        /** Returns the verified token, or null when malformed, forged, expired or revoked. */
+        AuthToken verify(String token) {
+            int dot = token.indexOf('.');
+            if (dot <= 0) return null;
+            byte[] body, tag;
+            try {
+                Base64.Decoder b64 = Base64.getUrlDecoder();
+                body = b64.decode(token.substring(0, dot));
+                tag = b64.decode(token.substring(dot + 1));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+            if (!MessageDigest.isEqual(macs.get().doFinal(body), tag)) return null;
+            String[] f = new String(body, StandardCharsets.UTF_8).split(":", 5);
+            if (f.length != 5) return null;
+            AuthToken t = new AuthToken(Integer.parseInt(f[0]), f[4], f[1],
+                    Long.parseLong(f[2]), Long.parseLong(f[3]));
+            return isLive(t) ? t : null;
+        }
+
+        /** Whether a token verified earlier has since expired or been revoked. */
+        boolean isLive(AuthToken t) {
+            return t.expiresAt > System.currentTimeMillis() && !revoked.containsKey(t.jti);
+        }
+
+        AuthToken fromCookies(Cookie[] cookies) {
+            if (cookies == null) return null;
+            for (Cookie c : cookies) {
+                if (COOKIE.equals(c.getName())) return verify(c.getValue());
+            }
+            return null;
+        }
+
+        // Revocation is per node: logout is immediate here, other nodes rely on expiry
+        void revoke(AuthToken t) {
+            long now = System.currentTimeMillis();
+            revoked.values().removeIf(exp -> exp <= now);
+            revoked.put(t.jti, t.expiresAt);
+            Metrics.set("auth.revoked", revoked.size());
+        }
+
+        String setCookieHeader(String token) {
+            return COOKIE + "=" + token + "; Path=/; Max-Age=" + ttlMillis / 1000
+                    + "; HttpOnly; SameSite=Strict";
+        }
+
+        String clearCookieHeader() {
+            return COOKIE + "=; Path=/; Max-Age=0; HttpOnly; SameSite=Strict";
+        }
+    }
+
+    public static class AuthFilter implements Filter {
+        public void doFilter(ServletRequest r, ServletResponse s, FilterChain c)
+                throws IOException, ServletException {
+            HttpServletRequest req = (HttpServletRequest) r;
+            AuthToken token = tokens.fromCookies(req.getCookies());
+            if (token != null) req.setAttribute(AuthToken.ATTR, token);
+            if (req.getRequestURI().endsWith("/login") ||
+                req.getRequestURI().equals("/") ||
+                token != null) {
+                c.doFilter(r, s);
+            } else {
+                ((HttpServletResponse) s).sendRedirect("login");
+            }
+        }
+    }
+
+    /* =============================
+       SESSION STORE
+       ============================= */
+    /**
+     * HttpSession data kept outside the Java heap in fixed-size slots of a
+     * memory-mapped file. The slots double as an open-addressing hash table
+     * keyed by the session id, so idle sessions cost file pages rather than
+     * heap objects. Used with NullSessionCache, nothing stays on heap
+     * between requests, and records survive a restart.
+     *
+     * Slot: [int state][int len][long idHash][long expiry][record]
+     * Record: [UTF id][long expiry][UTF contextPath, vhost, lastNode]
+     *         [long created, accessed, lastAccessed, cookieSet, maxInactiveMs][attributes]
+     *
+     * Deletes leave DELETED tombstones so probe chains stay intact. Inserts
+     * reuse the first tombstone on their chain, and once tombstones pass a
+     * quarter of the table the live slots are rehashed into a fresh file.
+     */
+    public static class OffHeapSessionDataStore extends AbstractSessionDataStore {
+        private static final int EMPTY = 0, USED = 1, DELETED = 2;
+        private static final int HEADER = 24;
+        private static final int CHUNK_SHIFT = 16;
+        private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+
+        private final Path file;
+        private final int capacity;
+        private final int slotBytes;
+        private MappedByteBuffer[] chunks;
+        private FileChannel channel;
+        private int size;
+        private int tombstones;
+        private SessionReplicator replicator;
+
+        OffHeapSessionDataStore(Path file, int capacity, int slotBytes) {
+            if (Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("capacity must be a power of two");
+            if ((long) CHUNK_SLOTS * slotBytes > Integer.MAX_VALUE) throw new IllegalArgumentException("slot too large");
+            this.file = file;
+            this.capacity = capacity;
+            this.slotBytes = slotBytes;
+        }
+
+        void setReplicator(SessionReplicator replicator) { this.replicator = replicator; }
+
+        @Override
+        protected void doStart() throws Exception {
+            Files.createDirectories(file.getParent());
+            boolean existing = Files.exists(file);
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            chunks = map(channel);
+            synchronized (this) {
+                size = 0;
+                tombstones = 0;
+                if (existing) {
+                    for (int i = 0; i < capacity; i++) {
+                        int state = state(i);
+                        if (state == USED) size++;
+                        else if (state == DELETED) tombstones++;
+                    }
+                }
+                Metrics.set("sessions.stored", size);
+                Metrics.set("sessions.tombstones", tombstones);
+            }
+            super.doStart();
+            if (replicator != null) replicator.start();
+        }
+
+        @Override
+        protected void doStop() throws Exception {
+            if (replicator != null) replicator.stop();
+            super.doStop();
+            channel.close();
+            chunks = null;
+        }
+
+        @Override
+        public boolean isPassivating() { return true; }
+
+        @Override
+        public boolean doExists(String id) {
+            synchronized (this) {
+                int i = find(id);
+                if (i < 0) return false;
+                long expiry = expiry(i);
+                return expiry <= 0 || expiry > System.currentTimeMillis();
+            }
+        }
+
+        @Override
+        public SessionData doLoad(String id) throws Exception {
+            byte[] record;
+            synchronized (this) {
+                int i = find(id);
+                if (i < 0) return null;
+                record = new byte[buf(i).getInt(base(i) + 4)];
+                buf(i).get(base(i) + HEADER, record, 0, record.length);
+            }
+            return decode(record);
+        }
+
+        @Override
+        public void doStore(String id, SessionData data, long lastSaveTime) throws Exception {
+            byte[] record = encode(data);
+            put(id, data.getExpiry(), record);
+            if (replicator != null) replicator.publishPut(record);
+        }
+
+        @Override
+        public boolean delete(String id) {
+            boolean removed = remove(id);
+            if (removed && replicator != null) replicator.publishDelete(id);
+            return removed;
+        }
+
+        @Override
+        public Set<String> doCheckExpired(Set<String> candidates, long time) {
+            Set<String> expired = new HashSet<>();
+            synchronized (this) {
+                for (String id : candidates) {
+                    int i = find(id);
+                    if (i < 0 || (expiry(i) > 0 && expiry(i) <= time)) expired.add(id);
+                }
+            }
+            return expired;
+        }
+
+        @Override
+        public synchronized Set<String> doGetExpired(long before) {
+            Set<String> expired = new HashSet<>();
+            for (int i = 0; i < capacity; i++) {
+                if (state(i) == USED && expiry(i) > 0 && expiry(i) <= before) expired.add(idAt(i));
+            }
+            return expired;
+        }
+
+        @Override
+        public synchronized void doCleanOrphans(long time) {
+            for (int i = 0; i < capacity; i++) {
+                if (state(i) == USED && expiry(i) > 0 && expiry(i) <= time) clear(i);
+            }
+            compactIfNeeded();
+        }
+
+        // replicated writes are applied locally and never forwarded again
+        void applyRemotePut(byte[] record) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            put(in.readUTF(), in.readLong(), record);
+        }
+
+        void applyRemoteDelete(String id) { remove(id); }
+
+        private synchronized void put(String id, long expiry, byte[] record) {
+            if (HEADER + record.length > slotBytes) {
+                throw new IllegalStateException("Session " + id + " needs " + (HEADER + record.length)
+                        + " bytes, slot is " + slotBytes + " (session.slotBytes)");
+            }
+            long hash = hash(id);
+            int mask = capacity - 1, tombstone = -1, existing = -1, empty = -1;
+            for (int i = (int) hash & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+                int state = state(i);
+                if (state == EMPTY) {
+                    empty = i;
+                    break;
+                }
+                if (state == DELETED) {
+                    if (tombstone < 0) tombstone = i;
+                } else if (buf(i).getLong(base(i) + 8) == hash && id.equals(idAt(i))) {
+                    existing = i;
+                    break;
+                }
+            }
+            // the first tombstone on the chain wins, even over the record's current slot
+            int target = tombstone >= 0 ? tombstone : existing >= 0 ? existing : empty;
+            if (target < 0) throw new IllegalStateException("Session store full (" + capacity + " slots)");
+            ByteBuffer b = buf(target);
+            int at = base(target);
+            b.putInt(at + 4, record.length);
+            b.putLong(at + 8, hash);
+            b.putLong(at + 16, expiry);
+            b.put(at + HEADER, record);
+            b.putInt(at, USED);
+            if (target == tombstone) {
+                // the old copy, if any, becomes the tombstone this insert consumed
+                if (existing >= 0) buf(existing).putInt(base(existing), DELETED);
+                else Metrics.set("sessions.tombstones", --tombstones);
+            }
+            if (existing < 0) Metrics.set("sessions.stored", ++size);
+        }
+
+        private synchronized boolean remove(String id) {
+            int i = find(id);
+            if (i < 0) return false;
+            clear(i);
+            compactIfNeeded();
+            return true;
+        }
+
+        private void clear(int i) {
+            buf(i).putInt(base(i), DELETED);
+            Metrics.set("sessions.stored", --size);
+            Metrics.set("sessions.tombstones", ++tombstones);
+        }
+
+        // Tombstones lengthen every probe that crosses them, and a table with no EMPTY slot left makes each miss a
+        // full scan. Copying the live slots into a fresh file resets the chains and leaves the old file untouched
+        // until the rename, so a crash mid-way loses nothing.
+        private void compactIfNeeded() {
+            if (tombstones <= capacity >>> 2) return;
+            Path next = file.resolveSibling(file.getFileName() + ".compact");
+            FileChannel nextChannel = null;
+            try {
+                Files.deleteIfExists(next);
+                nextChannel = FileChannel.open(next,
+                        StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                MappedByteBuffer[] nextChunks = map(nextChannel);
+                int mask = capacity - 1;
+                byte[] slot = new byte[slotBytes];
+                for (int i = 0; i < capacity; i++) {
+                    if (state(i) != USED) continue;
+                    buf(i).get(base(i), slot);
+                    int j = (int) buf(i).getLong(base(i) + 8) & mask;
+                    while (nextChunks[j >>> CHUNK_SHIFT].getInt(base(j)) != EMPTY) j = (j + 1) & mask;
+                    nextChunks[j >>> CHUNK_SHIFT].put(base(j), slot);
+                }
+                Files.move(next, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                FileChannel old = channel;
+                channel = nextChannel;
+                chunks = nextChunks;
+                tombstones = 0;
+                Metrics.set("sessions.tombstones", 0);
+                Metrics.increment("sessions.compactions");
+                old.close();
+            } catch (IOException e) {
+                System.err.println("Session store compaction failed: " + e);
+                if (nextChannel != null && nextChannel != channel) {
+                    try {
+                        nextChannel.close();
+                    } catch (IOException ignored) {
+                        // already failing; the stale .compact file is replaced next time
+                    }
+                }
+            }
+        }
+
+        private MappedByteBuffer[] map(FileChannel ch) throws IOException {
+            MappedByteBuffer[] mapped = new MappedByteBuffer[Math.max(1, capacity >>> CHUNK_SHIFT)];
+            for (int c = 0; c < mapped.length; c++) {
+                long slots = Math.min(CHUNK_SLOTS, capacity);
+                mapped[c] = ch.map(FileChannel.MapMode.READ_WRITE, (long) c * CHUNK_SLOTS * slotBytes,
+                        slots * slotBytes);
+            }
+            return mapped;
+        }
+
+        private int find(String id) {
+            long hash = hash(id);
+            int mask = capacity - 1;
+            for (int i = (int) hash & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+                int state = state(i);
+                if (state == EMPTY) return -1;
+                if (state == USED && buf(i).getLong(base(i) + 8) == hash && id.equals(idAt(i))) return i;
+            }
+            return -1;
+        }
+
+        private ByteBuffer buf(int i) { return chunks[i >>> CHUNK_SHIFT]; }
+        private int base(int i) { return (i & (CHUNK_SLOTS - 1)) * slotBytes; }
+        private int state(int i) { return buf(i).getInt(base(i)); }
+        private long expiry(int i) { return buf(i).getLong(base(i) + 16); }
+
+        // the record starts with writeUTF(id): unsigned short length + modified UTF-8 (ASCII for session ids)
+        private String idAt(int i) {
+            ByteBuffer b = buf(i);
+            int at = base(i) + HEADER;
+            byte[] id = new byte[b.getShort(at) & 0xFFFF];
+            b.get(at + 2, id, 0, id.length);
+            return new String(id, StandardCharsets.UTF_8);
+        }
+
+        private static long hash(String id) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) h = (h ^ id.charAt(i)) * 0x100000001b3L;
+            return h ^ (h >>> 32);
+        }
+
+        static byte[] encode(SessionData d) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(d.getId());
+            out.writeLong(d.getExpiry());
+            out.writeUTF(d.getContextPath());
+            out.writeUTF(d.getVhost());
+            out.writeUTF(d.getLastNode() == null ? "" : d.getLastNode());
+            out.writeLong(d.getCreated());
+            out.writeLong(d.getAccessed());
+            out.writeLong(d.getLastAccessed());
+            out.writeLong(d.getCookieSet());
+            out.writeLong(d.getMaxInactiveMs());
+            out.flush();
+            ObjectOutputStream attrs = new ObjectOutputStream(bytes);
+            SessionData.serializeAttributes(d, attrs);
+            attrs.flush();
+            return bytes.toByteArray();
+        }
+
+        private static SessionData decode(byte[] record) throws IOException, ClassNotFoundException {
+            ByteArrayInputStream bytes = new ByteArrayInputStream(record);
+            DataInputStream in = new DataInputStream(bytes);
+            String id = in.readUTF();
+            long expiry = in.readLong();
+            String contextPath = in.readUTF();
+            String vhost = in.readUTF();
+            String lastNode = in.readUTF();
+            long created = in.readLong();
+            long accessed = in.readLong();
+            long lastAccessed = in.readLong();
+            long cookieSet = in.readLong();
+            SessionData d = new SessionData(id, contextPath, vhost, created, accessed, lastAccessed,
+                    in.readLong());
+            d.setExpiry(expiry);
+            d.setCookieSet(cookieSet);
+            d.setLastNode(lastNode.isEmpty() ? null : lastNode);
+            ObjectInputStream attrs = new ClassLoadingObjectInputStream(bytes);
+            attrs.setObjectInputFilter(SESSION_SERIAL_FILTER);
+            SessionData.deserializeAttributes(d, attrs);
+            return d;
+        }
+    }
+
+    /**
+     * Best-effort replication of session writes to peer nodes over plain TCP.
+     * Each peer has a bounded outbound queue drained by its own sender thread,
+     * so a slow or absent peer costs dropped frames, never request latency.
+     * Frame: [int len][byte op][body][HMAC-SHA256(op, body)]; PUT body = stored
+     * record, DELETE body = UTF id. PUT records end up deserialized, so a frame
+     * whose MAC does not verify under auth.secret closes the connection unread.
+     */
+    public static class SessionReplicator {
+        private static final byte PUT = 1, DELETE = 2;
+        private static final int PEER_QUEUE = 10_000;
+        private static final int MAC_BYTES = 32;
+
+        private final OffHeapSessionDataStore store;
+        private final InetSocketAddress listen;
+        private final SecretKeySpec key;
+        private final ThreadLocal<Mac> macs;
+        private final List<Peer> peers = new ArrayList<>();
+        private volatile boolean running;
+        private ServerSocket server;
+
+        SessionReplicator(OffHeapSessionDataStore store, InetSocketAddress listen, String peerList, byte[] secret) {
+            this.store = store;
+            this.listen = listen;
+            this.key = new SecretKeySpec(secret, "HmacSHA256");
+            this.macs = ThreadLocal.withInitial(() -> {
+                try {
+                    Mac mac = Mac.getInstance("HmacSHA256");
+                    mac.init(key);
+                    return mac;
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            for (String p : peerList.split(",")) {
+                if (p.isBlank()) continue;
+                int colon = p.lastIndexOf(':');
+                peers.add(new Peer(new InetSocketAddress(p.substring(0, colon).trim(),
+                        Integer.parseInt(p.substring(colon + 1).trim()))));
+            }
+        }
+
+        void start() throws IOException {
+            running = true;
+            server = new ServerSocket();
+            server.bind(listen);
+            Thread acceptor = new Thread(this::accept, "session-repl-accept");
+            acceptor.setDaemon(true);
+            acceptor.start();
+            for (Peer p : peers) p.start();
+            System.out.println("Session replication on " + listen + " -> " + peers.size() + " peer(s)");
+        }
+
+        void stop() throws IOException {
+            running = false;
+            server.close();
+            for (Peer p : peers) p.thread.interrupt();
+        }
+
+        void publishPut(byte[] record) { publish(PUT, record); }
+
+        void publishDelete(String id) {
+            publish(DELETE, id.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void publish(byte op, byte[] body) {
+            ByteBuffer frame = ByteBuffer.allocate(5 + body.length + MAC_BYTES);
+            frame.putInt(1 + body.length + MAC_BYTES).put(op).put(body).put(sign(op, body));
+            for (Peer p : peers) {
+                if (!p.queue.offer(frame.array())) Metrics.increment("session.replication.dropped");
+            }
+        }
+
+        private void accept() {
+            while (running) {
+                try {
+                    Socket s = server.accept();
+                    Thread reader = new Thread(() -> receive(s), "session-repl-in");
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException e) {
+                    if (running) System.err.println("Session replication accept failed: " + e);
+                }
+            }
+        }
+
+        private byte[] sign(byte op, byte[] body) {
+            Mac mac = macs.get();
+            mac.update(op);
+            return mac.doFinal(body);
+        }
+
+        private void receive(Socket s) {
+            // a PUT body is one stored record, so nothing legitimate is longer than a slot
+            int maxLen = 1 + store.slotBytes + MAC_BYTES;
+            byte[] tag = new byte[MAC_BYTES];
+            try (s; DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()))) {
+                while (running) {
+                    int len = in.readInt();
+                    if (len < 1 + MAC_BYTES || len > maxLen) {
+                        reject(s, "frame length " + len);
+                        return;
+                    }
+                    byte[] body = new byte[len - 1 - MAC_BYTES];
+                    byte op = in.readByte();
+                    in.readFully(body);
+                    in.readFully(tag);
+                    if (!MessageDigest.isEqual(sign(op, body), tag)) {
+                        reject(s, "bad frame MAC");
+                        return;
+                    }
+                    if (op == PUT) store.applyRemotePut(body);
+                    else if (op == DELETE) store.applyRemoteDelete(new String(body, StandardCharsets.UTF_8));
+                    Metrics.increment("session.replication.applied");
+                }
+            } catch (EOFException ignored) {
+                // peer closed the connection
+            } catch (IOException | RuntimeException e) {
+                if (running) System.err.println("Session replication from " + s.getRemoteSocketAddress() + ": " + e);
+            }
+        }
+
+        private static void reject(Socket s, String why) {
+            Metrics.increment("session.replication.rejected");
+            System.err.println("Session replication from " + s.getRemoteSocketAddress() + " rejected: " + why);
+        }
+
+        private final class Peer implements Runnable {
+            final InetSocketAddress address;
+            final ArrayBlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(PEER_QUEUE);
+            final Thread thread;
+
+            Peer(InetSocketAddress address) {
+                this.address = address;
+                this.thread = new Thread(this, "session-repl-out-" + address.getPort());
+                this.thread.setDaemon(true);
+            }
+
+            void start() { thread.start(); }
+
+            public void run() {
+                while (running) {
+                    try (Socket s = new Socket()) {
+                        s.connect(address, 1_000);
+                        s.setTcpNoDelay(true);
+                        OutputStream out = new BufferedOutputStream(s.getOutputStream());
+                        while (running) {
+                            byte[] frame = queue.take();
+                            out.write(frame);
+                            Metrics.increment("session.replication.sent");
+                            // batch whatever queued up meanwhile into one flush
+                            while ((frame = queue.poll()) != null) {
+                                out.write(frame);
+                                Metrics.increment("session.replication.sent");
+                            }
+                            out.flush();
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        // peer down: retry after a pause, queued frames wait (or drop once full)
+                        try {
+                            Thread.sleep(1_000);
+                        } catch (InterruptedException ie) {
+                            return;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /* =============================
+       RENDERING
+       ============================= */
+    /**
+     * Writes the stock list as bytes: symbols come pre-escaped from the
+     * snapshot, prices go through an allocation-free decimal formatter, and
+     * the whole page is handed to the output stream in one write with a
+     * Content-Length. Buffers are pooled rather than thread-local so the
+     * reuse also works on virtual threads.
+     */
+    static final class StockRenderer {
+        private static final byte[] HTML_SEP = ascii(" : ");
+        private static final byte[] HTML_EOL = ascii("<br/>\n");
+        private static final byte[] HTML_FOOTER = ascii("<a href='orders'>Trade</a> | <a href='logout'>Logout</a>\n");
+        private static final byte[] JSON_HEAD = ascii("{\"version\":");
+        private static final byte[] JSON_STOCKS = ascii(",\"stocks\":[");
+        private static final byte[] JSON_SYMBOL = ascii("{\"symbol\":\"");
+        private static final byte[] JSON_PRICE = ascii("\",\"price\":");
+        private static final byte[] JSON_TAIL = ascii("]}");
+        private static final byte[] JSON_VERSION = ascii(",\"version\":");
+        private static final ArrayBlockingQueue<ByteSink> POOL = new ArrayBlockingQueue<>(64);
+
+        private StockRenderer() { }
+
+        static void html(StockSnapshot snap, HttpServletResponse s) throws IOException {
+            ByteSink b = acquire();
+            try {
+                for (int i = 0; i < snap.stocks.length; i++) {
+                    b.put(snap.htmlSymbols[i]).put(HTML_SEP).putTicks(snap.stocks[i].price).put(HTML_EOL);
+                }
+                b.put(HTML_FOOTER);
+                send(b, "text/html;charset=utf-8", s);
+            } finally {
+                release(b);
+            }
+        }
+
+        static void json(StockSnapshot snap, HttpServletResponse s) throws IOException {
+            ByteSink b = acquire();
+            try {
+                writeJson(snap, b);
+                send(b, "application/json", s);
+            } finally {
+                release(b);
+            }
+        }
+
+        /** {"version":N,"stocks":[{"symbol":"AAPL","price":175.12},...]} */
+        static byte[] jsonBytes(StockSnapshot snap) {
+            ByteSink b = acquire();
+            try {
+                writeJson(snap, b);
+                return Arrays.copyOf(b.buf, b.len);
+            } finally {
+                release(b);
+            }
+        }
+
+        /** {"symbol":"AAPL","price":175.12,"version":N} with the symbol's own version */
+        static byte[] quoteBytes(StockSnapshot snap, int i) {
+            ByteSink b = acquire();
+            try {
+                b.put(JSON_SYMBOL).put(snap.jsonSymbols[i]).put(JSON_PRICE).putTicks(snap.stocks[i].price)
+                        .put(JSON_VERSION).putLong(snap.symbolVersions[i]).put((byte) '}');
+                return Arrays.copyOf(b.buf, b.len);
+            } finally {
+                release(b);
+            }
+        }
+
+        private static void writeJson(StockSnapshot snap, ByteSink b) {
+            b.put(JSON_HEAD).putLong(snap.version).put(JSON_STOCKS);
+            for (int i = 0; i < snap.stocks.length; i++) {
+                if (i > 0) b.put((byte) ',');
+                b.put(JSON_SYMBOL).put(snap.jsonSymbols[i]).put(JSON_PRICE)
+                        .putTicks(snap.stocks[i].price).put((byte) '}');
+            }
+            b.put(JSON_TAIL);
+        }
+
+        private static void send(ByteSink b, String contentType, HttpServletResponse s) throws IOException {
+            s.setContentType(contentType);
+            s.setContentLength(b.len);
+            s.getOutputStream().write(b.buf, 0, b.len);
+        }
+
+        private static ByteSink acquire() {
+            ByteSink b = POOL.poll();
+            return b != null ? b : new ByteSink(4096);
+        }
+
+        private static void release(ByteSink b) {
+            b.len = 0;
+            POOL.offer(b);
+        }
+
+        static byte[] htmlEscaped(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '&' -> sb.append("&amp;");
+                    case '<' -> sb.append("&lt;");
+                    case '>' -> sb.append("&gt;");
+                    case '"' -> sb.append("&quot;");
+                    case '\'' -> sb.append("&#39;");
+                    default -> sb.append(c);
+                }
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        static byte[] jsonEscaped(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') sb.append('\\').append(c);
+                else if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    /**
+     * Encoded /api/quotes bodies keyed by snapshot version: the JSON and its
+     * gzip form are built once per change and then served to every poller.
+     * ETags are strong and combine a boot epoch with the version, because
+     * versions restart from 1 when the process does.
+     */
+    static final class QuoteCache {
+        static final class Entry {
+            final long version;
+            final String etag;
+            final byte[] json;
+            final byte[] gzip;
+
+            Entry(long version, byte[] json) {
+                this.version = version;
+                this.etag = "\"" + EPOCH + "-" + version + "\"";
+                this.json = json;
+                this.gzip = gzip(json);
+            }
+        }
+
+        private static final String EPOCH = Long.toString(System.currentTimeMillis(), 36);
+
+        private volatile Entry all;
+        private volatile Entry[] bySymbol = new Entry[0];
+
+        Entry all(StockSnapshot snap) {
+            Entry e = all;
+            if (e == null || e.version != snap.version) {
+                e = new Entry(snap.version, StockRenderer.jsonBytes(snap));
+                all = e; // racing builders produce identical bytes, last one wins
+            }
+            return e;
+        }
+
+        Entry symbol(StockSnapshot snap, int i) {
+            Entry[] cache = bySymbol;
+            if (cache.length != snap.stocks.length) bySymbol = cache = new Entry[snap.stocks.length];
+            Entry e = cache[i];
+            long v = snap.symbolVersions[i];
+            if (e == null || e.version != v) {
+                e = new Entry(v, StockRenderer.quoteBytes(snap, i));
+                cache[i] = e;
+            }
+            return e;
+        }
+
+        private static byte[] gzip(byte[] raw) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 2 + 32);
+            try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                gz.write(raw);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /** Growable byte buffer with digit formatting that never allocates once warmed up. */
+    static final class ByteSink {
+        byte[] buf;
+        int len;
+
+        ByteSink(int capacity) { buf = new byte[capacity]; }
+
+        ByteSink put(byte b) {
+            ensure(1);
+            buf[len++] = b;
+            return this;
+        }
+
+        ByteSink put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, len, bytes.length);
+            len += bytes.length;
+            return this;
+        }
+
+        // non-negative values only: versions and the integer part of a price
+        ByteSink putLong(long v) {
+            int digits = 1;
+            for (long t = v; t >= 10; t /= 10) digits++;
+            ensure(digits);
+            for (int i = len + digits - 1; i >= len; i--) {
+                buf[i] = (byte) ('0' + v % 10);
+                v /= 10;
+            }
+            len += digits;
+            return this;
+        }
+
+        // prices are cents on the wire, as in the matching engine: 17510 -> "175.10"
+        ByteSink putTicks(long ticks) {
+            if (ticks < 0) {
+                put((byte) '-');
+                ticks = -ticks;
+            }
+            putLong(ticks / PRICE_SCALE).put((byte) '.');
+            long cents = ticks % PRICE_SCALE;
+            return put((byte) ('0' + cents / 10)).put((byte) ('0' + cents % 10));
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+        }
+    }
+
+    /* =============================
+       SERVLETS
+       ============================= */
+    interface AsyncWork {
+        void run() throws Exception;
+    }
+
+    /**
+     * Releases the Jetty thread immediately: the work runs on the request
+     * executor and the async context is completed when it finishes. A full
+     * executor is answered with 503 instead of queueing without bound.
+     */
+    static void dispatchAsync(HttpServletRequest r, AsyncWork work) {
+        AsyncContext ac = r.startAsync();
+        ac.setTimeout(ASYNC_TIMEOUT_MS);
+        HttpServletResponse s = (HttpServletResponse) ac.getResponse();
+        try {
+            requestExecutor.execute(() -> {
+                try {
+                    work.run();
+                } catch (Exception e) {
+                    failAsync(s, e);
+                } finally {
+                    ac.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sendErrorQuietly(s, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy");
+            ac.complete();
+        }
+    }
+
+    static void failAsync(HttpServletResponse s, Exception e) {
+        System.err.println("Request failed: " + e);
+        sendErrorQuietly(s, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, null);
+    }
+
+    static void sendErrorQuietly(HttpServletResponse s, int status, String msg) {
+        try {
+            if (!s.isCommitted()) s.sendError(status, msg);
+        } catch (IOException ignored) {
+            // client is gone
+        }
+    }
+
+    public static class HomeServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            s.sendRedirect(r.getAttribute(AuthToken.ATTR) == null ? "login" : "stocks");
+        }
+    }
+
+    static String rolesOf(User u) {
+        return ADMIN_USERS.contains(u.getUsername()) ? "trader,admin" : "trader";
+    }
+
+    public static class LoginServlet extends HttpServlet {
+        private UserService service;
+        public void init() { service = new UserService(ds); }
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            s.setContentType("text/html");
+            s.getWriter().println("""
+                <form method='post'>
+                  Username: <input name='username'/><br/>
+                  Password: <input type='password' name='password'/><br/>
+                  <button>Login</button>
+                  <p>Demo: student / student123</p>
+                </form>
+            """);
+        }
+
+        // user lookup on the request executor, BCrypt on the login executor, neither on Jetty threads
+        protected void doPost(HttpServletRequest r, HttpServletResponse s) {
+            String username = r.getParameter("username");
+            String password = r.getParameter("password");
+            AsyncContext ac = r.startAsync();
+            ac.setTimeout(ASYNC_TIMEOUT_MS);
+            CompletableFuture<Optional<User>> pending;
+            try {
+                pending = CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return service.findUser(username);
+                    } catch (SQLException e) {
+                        throw new CompletionException(e);
+                    }
+                }, requestExecutor).thenCompose(u -> service.verifyAsync(u, password, loginExecutor));
+            } catch (RejectedExecutionException e) {
+                sendErrorQuietly(s, HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Server busy");
+                ac.complete();
+                return;
+            }
+            pending.whenCompleteAsync((u, err) -> {
+                try {
+                    Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+                    if (cause instanceof RejectedExecutionException) {
+                        s.setHeader("Retry-After", "1");
+                        sendErrorQuietly(s, 429, "Too many login attempts, retry shortly");
+                    } else if (cause != null) {
+                        failAsync(s, cause instanceof Exception ex ? ex : new RuntimeException(cause));
+                    } else if (u.isPresent()) {
+                        s.addHeader("Set-Cookie", tokens.setCookieHeader(tokens.issue(u.get(), rolesOf(u.get()))));
+                        s.sendRedirect("stocks");
+                    } else {
+                        s.getWriter().println("Invalid credentials");
+                    }
+                } catch (IOException | IllegalStateException e) {
+                    failAsync(s, e);
+                } finally {
+                    ac.complete();
+                }
+            }, requestExecutor);
+        }
+    }
+
+    public static class StocksServlet extends HttpServlet {
+        private StockService service;
+        public void init() { service = stockService; }
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) {
+            String accept = r.getHeader("Accept");
+            boolean json = "json".equals(r.getParameter("format"))
+                    || (accept != null && accept.startsWith("application/json"));
+            dispatchAsync(r, () -> {
+                if (json) StockRenderer.json(service.snapshot(), s);
+                else StockRenderer.html(service.snapshot(), s);
+            });
+        }
+    }
+
+    /**
+     * GET /portfolio: the user's cash and positions straight from the
+     * in-memory ledger (HTML, or JSON via ?format=json / Accept). Costs are
+     * the net cash paid into each position; market value, equity and P&L are
+     * the live totals kept by MarkToMarket.
+     */
+    public static class PortfolioServlet extends HttpServlet {
+        private static final byte[] CASH = ascii("Cash : "), VALUE = ascii("Market value : "),
+                EQUITY = ascii("Equity : "), PNL = ascii("P&amp;L : "), SEP = ascii(" : "), COST = ascii(" cost "),
+                EOL = ascii("<br/>\n");
+        private static final byte[] J_USER = ascii("{\"userId\":"), J_SEQ = ascii(",\"seq\":"),
+                J_CASH = ascii(",\"cash\":"), J_POSITIONS = ascii(",\"positions\":["), J_SYMBOL = ascii("{\"symbol\":\""),
+                J_QTY = ascii("\",\"qty\":"), J_COST = ascii(",\"cost\":"), J_VALUE = ascii(",\"marketValue\":"),
+                J_EQUITY = ascii(",\"equity\":"), J_PNL = ascii(",\"pnl\":");
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            AuthToken user = (AuthToken) r.getAttribute(AuthToken.ATTR);
+            if (user == null) { s.sendRedirect("login"); return; }
+            String accept = r.getHeader("Accept");
+            boolean json = "json".equals(r.getParameter("format"))
+                    || (accept != null && accept.startsWith("application/json"));
+            Portfolio p = ledger.portfolio(user.userId);
+            MarkToMarket.Valuation v = markToMarket.valuation(user.userId);
+            StockSnapshot snap;
+            try {
+                snap = stockService.snapshot();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+            ByteSink b = new ByteSink(128 + p.symbols.length * 64);
+            if (json) {
+                b.put(J_USER).putLong(p.userId).put(J_SEQ).putLong(p.seq).put(J_CASH).putTicks(p.cash)
+                        .put(J_VALUE).putTicks(v.value).put(J_EQUITY).putTicks(v.equity()).put(J_PNL).putTicks(v.pnl())
+                        .put(J_POSITIONS);
+                for (int i = 0; i < p.symbols.length; i++) {
+                    if (i > 0) b.put((byte) ',');
+                    b.put(J_SYMBOL).put(snap.jsonSymbols[p.symbols[i]]).put(J_QTY);
+                    putSigned(b, p.qty[i]).put(J_COST).putTicks(p.cost[i]).put((byte) '}');
+                }
+                b.put((byte) ']').put((byte) '}');
+                s.setContentType("application/json");
+            } else {
+                b.put(CASH).putTicks(p.cash).put(EOL)
+                        .put(VALUE).putTicks(v.value).put(EOL)
+                        .put(EQUITY).putTicks(v.equity()).put(EOL)
+                        .put(PNL).putTicks(v.pnl()).put(EOL);
+                for (int i = 0; i < p.symbols.length; i++) {
+                    if (p.qty[i] == 0 && p.cost[i] == 0) continue;
+                    b.put(snap.htmlSymbols[p.symbols[i]]).put(SEP);
+                    putSigned(b, p.qty[i]).put(COST).putTicks(p.cost[i]).put(EOL);
+                }
+                s.setContentType("text/html;charset=utf-8");
+            }
+            s.setContentLength(b.len);
+            s.getOutputStream().write(b.buf, 0, b.len);
+        }
+
+        // short positions are negative; putLong takes non-negative values only
+        private static ByteSink putSigned(ByteSink b, long v) {
+            return v < 0 ? b.put((byte) '-').putLong(-v) : b.putLong(v);
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    /**
+     * GET /api/candles/{symbol}?interval=1m&limit=100 (interval 1s, 1m, 5m,
+     * 1h or 1d; limit up to 1000). Closed bars come from the candles table,
+     * the still-open bar from CandleEngine and is marked "open":true.
+     */
+    public static class CandlesServlet extends HttpServlet {
+        private static final byte[] T = ascii("{\"t\":"), O = ascii(",\"o\":"), H = ascii(",\"h\":"),
+                L = ascii(",\"l\":"), C = ascii(",\"c\":"), V = ascii(",\"v\":"), OPEN = ascii(",\"open\":true");
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            String path = r.getPathInfo();
+            String name = path == null ? "" : path.substring(1);
+            int symbol = stockService.symbols().id(name);
+            String interval = Objects.requireNonNullElse(r.getParameter("interval"), "1m");
+            int period = CandleEngine.periodIndex(interval);
+            if (symbol < 0 || period < 0) {
+                s.sendError(HttpServletResponse.SC_NOT_FOUND, symbol < 0 ? "Unknown symbol" : "Unknown interval");
+                return;
+            }
+            int limit;
+            try {
+                limit = (int) Math.max(1, Math.min(1_000, TicksServlet.longParam(r, "limit", 100)));
+            } catch (NumberFormatException e) {
+                s.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid number");
+                return;
+            }
+            dispatchAsync(r, () -> {
+                List<long[]> bars = candleDao.findRecent(name, interval, limit);
+                long[] current = candleEngine.openBar(symbol, period);
+                ByteSink b = new ByteSink(128 + bars.size() * 96);
+                b.put(("{\"symbol\":\"" + name + "\",\"interval\":\"" + interval + "\",\"candles\":[")
+                        .getBytes(StandardCharsets.UTF_8));
+                for (int i = 0; i < bars.size(); i++) {
+                    if (i > 0) b.put((byte) ',');
+                    bar(b, bars.get(i)).put((byte) '}');
+                }
+                if (current != null && (bars.isEmpty() || current[0] > bars.get(bars.size() - 1)[0])) {
+                    if (!bars.isEmpty()) b.put((byte) ',');
+                    bar(b, current).put(OPEN).put((byte) '}');
+                }
+                b.put((byte) ']').put((byte) '}');
+                s.setContentType("application/json");
+                s.setContentLength(b.len);
+                s.getOutputStream().write(b.buf, 0, b.len);
+            });
+        }
+
+        private static ByteSink bar(ByteSink b, long[] bar) {
+            return b.put(T).putLong(bar[0]).put(O).putTicks(bar[1]).put(H).putTicks(bar[2])
+                    .put(L).putTicks(bar[3]).put(C).putTicks(bar[4]).put(V).putLong(bar[5]);
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    // Server-Sent Events: one async request per client, written only by the PriceFeed thread
+    public static class PriceStreamServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            s.setContentType("text/event-stream");
+            s.setCharacterEncoding("UTF-8");
+            s.setHeader("Cache-Control", "no-cache");
+            AsyncContext ac = r.startAsync();
+            ac.setTimeout(0);
+            ServletOutputStream out = s.getOutputStream();
+            SseSubscriber sub = new SseSubscriber(ac, out, priceFeed);
+            ac.addListener(sub);
+            out.setWriteListener(sub);
+            priceFeed.subscribe(sub);
+        }
+    }
+
+    public static class OrdersServlet extends HttpServlet {
+        private StockService service;
+        public void init() { service = stockService; }
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            s.setContentType("text/html");
+            s.getWriter().println("""
+                <form method='post'>
+                  Symbol: <input name='symbol'/>
+                  <select name='side'><option>BUY</option><option>SELL</option></select>
+                  <select name='type'><option>LIMIT</option><option>MARKET</option></select>
+                  Qty: <input name='qty'/> Price: <input name='price'/>
+                  <button>Submit</button>
+                </form>
+                <form method='post'>
+                  <input type='hidden' name='action' value='cancel'/>
+                  Symbol: <input name='symbol'/> Order id: <input name='id'/>
+                  <button>Cancel</button>
+                </form>
+                <a href='stocks'>Stocks</a>
+            """);
+        }
+
+        protected void doPost(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            AuthToken user = (AuthToken) r.getAttribute(AuthToken.ATTR);
+            if (user == null) { s.sendRedirect("login"); return; }
+            s.setContentType("text/plain");
+            CompletableFuture<OrderResult> pending;
+            try {
+                String symbol = r.getParameter("symbol");
+                if ("cancel".equals(r.getParameter("action"))) {
+                    pending = service.cancelOrder(symbol, user.userId,
+                            Long.parseLong(r.getParameter("id")));
+                } else {
+                    String price = r.getParameter("price");
+                    byte type = "MARKET".equals(r.getParameter("type")) ? MARKET : LIMIT;
+                    pending = service.submitOrder(symbol, user.userId,
+                            "SELL".equals(r.getParameter("side")) ? SELL : BUY, type,
+                            type == MARKET || price == null || price.isBlank() ? 0 : parseTicks(price.trim()),
+                            Long.parseLong(r.getParameter("qty")));
+                }
+            } catch (NumberFormatException e) {
+                s.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid number");
+                return;
+            }
+            // the response is written from the request executor, never from the matching thread
+            AsyncContext ac = r.startAsync();
+            ac.setTimeout(ASYNC_TIMEOUT_MS);
+            // the timeout goes on a copy: only the shard may complete the command's own future
+            pending.copy().orTimeout(ORDER_TIMEOUT_MS, TimeUnit.MILLISECONDS).whenCompleteAsync((res, err) -> {
+                try {
+                    if (err == null) {
+                        s.getWriter().println(res);
+                    } else if (err instanceof TimeoutException) {
+                        // still queued on its shard, so it may yet fill or rest
+                        s.setStatus(HttpServletResponse.SC_ACCEPTED);
+                        s.getWriter().println("order pending: not matched within " + ORDER_TIMEOUT_MS + " ms");
+                    } else {
+                        Throwable cause = err instanceof CompletionException ? err.getCause() : err;
+                        sendErrorQuietly(s, HttpServletResponse.SC_SERVICE_UNAVAILABLE, cause.getMessage());
+                    }
+                } catch (IOException e) {
+                    failAsync(s, e);
+                } finally {
+                    ac.complete();
+                }
+            }, requestExecutor);
+        }
+    }
+
+    /**
+     * GET /api/quotes and /api/quotes/{symbol}. Polls that present the current
+     * ETag get a bodyless 304; everything else is served from QuoteCache,
+     * gzipped when the client accepts it.
+     */
+    public static class QuotesServlet extends HttpServlet {
+        private final QuoteCache cache = new QuoteCache();
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            StockSnapshot snap;
+            try {
+                snap = stockService.snapshot();
+            } catch (SQLException e) {
+                failAsync(s, e);
+                return;
+            }
+            String path = r.getPathInfo();
+            QuoteCache.Entry e;
+            if (path == null || path.equals("/")) {
+                e = cache.all(snap);
+            } else {
+                int i = snap.indexOfSymbol(path.substring(1));
+                if (i < 0) {
+                    s.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown symbol");
+                    return;
+                }
+                e = cache.symbol(snap, i);
+            }
+            s.setHeader("ETag", e.etag);
+            s.setHeader("Cache-Control", "no-cache");
+            s.setHeader("Vary", "Accept-Encoding");
+            if (etagMatches(r.getHeader("If-None-Match"), e.etag)) {
+                Metrics.increment("api.quotes.notModified");
+                s.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+            byte[] body = e.json;
+            if (acceptsGzip(r.getHeader("Accept-Encoding"))) {
+                s.setHeader("Content-Encoding", "gzip");
+                body = e.gzip;
+                Metrics.increment("api.quotes.gzip");
+            }
+            Metrics.increment("api.quotes.full");
+            s.setContentType("application/json");
+            s.setContentLength(body.length);
+            s.getOutputStream().write(body);
+        }
+
+        /**
+         * Whether an Accept-Encoding header admits gzip: an explicit gzip (or
+         * x-gzip) coding decides, otherwise "*" does, and q=0 means refused.
+         */
+        static boolean acceptsGzip(String header) {
+            if (header == null) return false;
+            double gzip = -1, any = -1;
+            for (String coding : header.split(",")) {
+                String[] params = coding.split(";");
+                String name = params[0].trim();
+                double q = 1;
+                for (int p = 1; p < params.length; p++) {
+                    String param = params[p].trim();
+                    if (param.length() > 2 && (param.charAt(0) == 'q' || param.charAt(0) == 'Q') && param.charAt(1) == '=') {
+                        try {
+                            q = Double.parseDouble(param.substring(2).trim());
+                        } catch (NumberFormatException ex) {
+                            q = 0; // unreadable weight: identity is always safe
+                        }
+                    }
+                }
+                if (name.equalsIgnoreCase("gzip") || name.equalsIgnoreCase("x-gzip")) gzip = Math.max(gzip, q);
+                else if (name.equals("*")) any = q;
+            }
+            return (gzip >= 0 ? gzip : any) > 0;
+        }
+
+        static boolean etagMatches(String header, String etag) {
+            if (header == null) return false;
+            if (header.trim().equals("*")) return true;
+            for (String candidate : header.split(",")) {
+                if (candidate.trim().equals(etag)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * POST /api/prices (admin): text/plain body, one "SYMBOL,price" per line.
+     * Runs as one chunked JDBC batch, or with ?mode=single one transaction per
+     * row through the old path, and reports the per-row cost of either.
+     */
+    public static class PricesServlet extends HttpServlet {
+        protected void doPost(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            AuthToken user = (AuthToken) r.getAttribute(AuthToken.ATTR);
+            if (user == null || !user.hasRole("admin")) {
+                s.sendError(HttpServletResponse.SC_FORBIDDEN, "Admin only");
+                return;
+            }
+            boolean single = "single".equals(r.getParameter("mode"));
+            dispatchAsync(r, () -> {
+                List<Map.Entry<String, Long>> updates = new ArrayList<>();
+                try (BufferedReader in = r.getReader()) {
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        line = line.trim();
+                        if (line.isEmpty()) continue;
+                        int comma = line.indexOf(',');
+                        try {
+                            updates.add(Map.entry(line.substring(0, comma).trim(),
+                                    parseTicks(line.substring(comma + 1).trim())));
+                        } catch (RuntimeException e) {
+                            s.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad line: " + line);
+                            return;
+                        }
+                    }
+                }
+                long start = System.nanoTime();
+                int updated = 0;
+                if (single) {
+                    for (Map.Entry<String, Long> u : updates) {
+                        StockSnapshot snap = stockService.snapshot();
+                        int i = snap.indexOfSymbol(u.getKey());
+                        if (i < 0) continue;
+                        updated += stockService.updatePrice(snap.stocks[i].id, u.getValue());
+                    }
+                } else {
+                    updated = stockService.updatePrices(updates, PRICE_BATCH_CHUNK);
+                }
+                long micros = (System.nanoTime() - start) / 1_000;
+                String mode = single ? "single" : "batch";
+                Metrics.add("prices." + mode + ".rows", updates.size());
+                Metrics.add("prices." + mode + ".micros", micros);
+                s.setContentType("text/plain");
+                s.getWriter().printf("mode=%s rows=%d updated=%d micros=%d perRowMicros=%.1f%n", mode,
+                        updates.size(), updated, micros, updates.isEmpty() ? 0.0 : micros / (double) updates.size());
+            });
+        }
+    }
+
+    /**
+     * GET /api/ticks/{symbol}?from=&to=&limit= (epoch millis; defaults: today
+     * so far, 10 000 ticks). Returns {"symbol":..,"count":n,"ticks":[[ts,price,size],...]}.
+     */
+    public static class TicksServlet extends HttpServlet {
+        private static final int MAX_LIMIT = 100_000;
+        private static final byte[] TICKS_OPEN = ",\"ticks\":[".getBytes(StandardCharsets.US_ASCII);
+        private static final byte[] TICKS_CLOSE = "]}".getBytes(StandardCharsets.US_ASCII);
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            String path = r.getPathInfo();
+            int symbol = path == null ? -1 : stockService.symbols().id(path.substring(1));
+            if (symbol < 0) {
+                s.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown symbol");
+                return;
+            }
+            long to, from;
+            int limit;
+            try {
+                to = longParam(r, "to", System.currentTimeMillis());
+                from = longParam(r, "from", Math.floorDiv(to, TickStore.DAY_MS) * TickStore.DAY_MS);
+                limit = (int) Math.min(MAX_LIMIT, longParam(r, "limit", 10_000));
+            } catch (NumberFormatException e) {
+                s.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid number");
+                return;
+            }
+            String name = path.substring(1);
+            dispatchAsync(r, () -> {
+                long start = System.nanoTime();
+                TickRange ticks = tickStore.range(symbol, from, to, limit);
+                Metrics.increment("ticks.queries");
+                Metrics.add("ticks.queryMicros", (System.nanoTime() - start) / 1_000);
+                ByteSink b = new ByteSink(64 + ticks.count * 40);
+                b.put(("{\"symbol\":\"" + name + "\",\"count\":").getBytes(StandardCharsets.UTF_8))
+                        .putLong(ticks.count).put(TICKS_OPEN);
+                for (int i = 0; i < ticks.count; i++) {
+                    if (i > 0) b.put((byte) ',');
+                    b.put((byte) '[').putLong(ticks.ts[i]).put((byte) ',').putTicks(ticks.price[i])
+                            .put((byte) ',').putLong(ticks.size[i]).put((byte) ']');
+                }
+                b.put(TICKS_CLOSE);
+                s.setContentType("application/json");
+                s.setContentLength(b.len);
+                s.getOutputStream().write(b.buf, 0, b.len);
+            });
+        }
+
+        static long longParam(HttpServletRequest r, String name, long dflt) {
+            String v = r.getParameter(name);
+            return v == null || v.isBlank() ? dflt : Long.parseLong(v.trim());
+        }
+    }
+
+    /**
+     * GET /api/trades?limit=50&before={cursor}: the user's own trades,
+     * newest first. Pages are keyset cursors ("millis.id" of the last row
+     * sent, returned as "next"), never offsets, and rows are written to the
+     * response as they come off the ResultSet.
+     */
+    public static class TradeHistoryServlet extends HttpServlet {
+        private static final int MAX_LIMIT = 1_000;
+        private static final int FLUSH_BYTES = 8_192;
+        private static final byte[] OPEN = ascii("{\"trades\":["), ID = ascii("{\"id\":"), TIME = ascii(",\"time\":"),
+                SYMBOL = ascii(",\"symbol\":\""), BUY = ascii("\",\"side\":\"BUY\",\"price\":"),
+                SELL = ascii("\",\"side\":\"SELL\",\"price\":"), QTY = ascii(",\"qty\":"),
+                NEXT = ascii("],\"next\":\""), NO_NEXT = ascii("],\"next\":null}");
+        private final TradeDAO dao = new TradeDAO(ds);
+
+        protected void doGet(HttpServletRequest r, HttpServletResponse s) throws IOException {
+            AuthToken user = (AuthToken) r.getAttribute(AuthToken.ATTR);
+            if (user == null) { s.sendRedirect("login"); return; }
+            long beforeTime = Long.MAX_VALUE / 2, beforeId = Long.MAX_VALUE; // Timestamp cannot hold MAX_VALUE
+            int limit;
+            try {
+                String before = r.getParameter("before");
+                if (before != null && !before.isBlank()) {
+                    int dot = before.indexOf('.');
+                    if (dot < 0) throw new NumberFormatException(before);
+                    beforeTime = Long.parseLong(before.substring(0, dot).trim());
+                    beforeId = Long.parseLong(before.substring(dot + 1).trim());
+                }
+                limit = (int) Math.max(1, Math.min(MAX_LIMIT, TicksServlet.longParam(r, "limit", 50)));
+            } catch (NumberFormatException e) {
+                s.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor or limit");
+                return;
+            }
+            long fromTime = beforeTime, fromId = beforeId;
+            dispatchAsync(r, () -> {
+                s.setContentType("application/json");
+                OutputStream out = s.getOutputStream();
+                ByteSink b = new ByteSink(FLUSH_BYTES + 256);
+                b.put(OPEN);
+                StockSnapshot snap = stockService.current();
+                long[] last = new long[2];
+                int n = dao.history(user.userId, fromTime, fromId, limit, (id, time, symbol, buy, price, qty) -> {
+                    if (last[1] != 0) b.put((byte) ',');
+                    // listed symbols come pre-escaped from the snapshot; only a delisted one is escaped here
+                    int i = snap.indexOfSymbol(symbol);
+                    b.put(ID).putLong(id).put(TIME).putLong(time).put(SYMBOL)
+                            .put(i >= 0 ? snap.jsonSymbols[i] : StockRenderer.jsonEscaped(symbol)).put(buy ? BUY : SELL)
+                            .putTicks(price).put(QTY).putLong(qty).put((byte) '}');
+                    last[0] = time;
+                    last[1] = id;
+                    if (b.len >= FLUSH_BYTES) {
+                        out.write(b.buf, 0, b.len);
+                        b.len = 0;
+                    }
+                });
+                // a short page is the last one
+                if (n < limit) b.put(NO_NEXT);
+                else b.put(NEXT).putLong(last[0]).put((byte) '.').putLong(last[1]).put((byte) '"').put((byte) '}');
+                out.write(b.buf, 0, b.len);
+                Metrics.increment("trades.historyPages");
+            });
+        }
+
+        private static byte[] ascii(String s) { return s.getBytes(StandardCharsets.US_ASCII); }
+    }
+
+    public static class MetricsServlet extends HttpServlet {
+        protected void doGet(HttpServletRequest r, HttpServletResponse s)
+                throws IOException {
+            s.setContentType("text/plain");
+            s.getWriter().print(Metrics.render());
+        }
     }
 
     public static class LogoutServlet extends HttpServlet {
         protected void doGet(HttpServletRequest r, HttpServletResponse s)
                 throws IOException {
-            r.getSession().invalidate();
+            AuthToken token = (AuthToken) r.getAttribute(AuthToken.ATTR);
+            if (token != null) tokens.revoke(token);
+            s.addHeader("Set-Cookie", tokens.clearCookieHeader());
             s.sendRedirect("login");
         }
     }
+
+    /* =============================
+       BENCHMARK
+       ============================= */
+    /**
+     * Compares the two server.threads modes under the same load. The switch
+     * moves both Jetty's request handling and the request executor, so each
+     * row measures one whole mode. Each mode runs the app in a child JVM
+     * (fresh ./data in a temp dir), then drives
+     * many concurrent requests through a fixed number of in-flight slots:
+     *   GET  /stocks              in-memory read path
+     *   POST /login (unknown user) one blocking UserDAO query, no BCrypt
+     *
+     * The child listens on -Dserver.port (default 8080), the same property the server reads.
+     *
+     * Run: mvn exec:java -Dexec.mainClass='JavaWebAppSingleFile$ModeBenchmark' -Dexec.args="2000 50000"
+     */
+    public static class ModeBenchmark {
+        private static final String BASE = "http://localhost:" + HTTP_PORT;
+
+        public static void main(String[] args) throws Exception {
+            int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 2_000;
+            int requests = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+            String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+            System.out.printf("%-9s %-12s %10s %9s %9s %7s%n", "mode", "endpoint", "req/s", "p50 ms", "p99 ms", "errors");
+            for (String mode : new String[] { "platform", "virtual" }) {
+                Path dir = Files.createTempDirectory("bench-" + mode);
+                Process app = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                        "-Dserver.threads=" + mode, "-Dserver.port=" + HTTP_PORT, "-Djournal.fsync=false",
+                        JavaWebAppSingleFile.class.getName())
+                        .directory(dir.toFile())
+                        .redirectErrorStream(true)
+                        .redirectOutput(dir.resolve("server.log").toFile())
+                        .start();
+                try {
+                    HttpClient client = HttpClient.newBuilder()
+                            .executor(Executors.newFixedThreadPool(8))
+                            .followRedirects(HttpClient.Redirect.NEVER)
+                            .build();
+                    awaitServer(client);
+                    String cookie = login(client);
+                    HttpRequest stocks = HttpRequest.newBuilder(URI.create(BASE + "/stocks"))
+                            .header("Cookie", cookie).build();
+                    HttpRequest miss = HttpRequest.newBuilder(URI.create(BASE + "/login"))
+                            .header("Content-Type", "application/x-www-form-urlencoded")
+                            .POST(HttpRequest.BodyPublishers.ofString("username=nobody&password=x")).build();
+                    run(client, mode, "stocks", stocks, concurrency, requests / 10); // warm-up
+                    report(mode, "stocks", run(client, mode, "stocks", stocks, concurrency, requests));
+                    report(mode, "login-miss", run(client, mode, "login-miss", miss, concurrency, requests));
+                } finally {
+                    app.destroy();
+                    app.waitFor();
+                }
+            }
+            System.exit(0);
+        }
+
+        private static void awaitServer(HttpClient client) throws Exception {
+            HttpRequest ping = HttpRequest.newBuilder(URI.create(BASE + "/login")).build();
+            for (int i = 0; i < 120; i++) {
+                try {
+                    client.send(ping, HttpResponse.BodyHandlers.discarding());
+                    return;
+                } catch (IOException e) {
+                    Thread.sleep(500);
+                }
+            }
+            throw new IllegalStateException("Server did not start");
+        }
+
+        private static String login(HttpClient client) throws Exception {
+            HttpResponse<Void> res = client.send(
+                    HttpRequest.newBuilder(URI.create(BASE + "/login"))
+                            .header("Content-Type", "application/x-www-form-urlencoded")
+                            .POST(HttpRequest.BodyPublishers.ofString("username=student&password=student123"))
+                            .build(),
+                    HttpResponse.BodyHandlers.discarding());
+            return res.headers().firstValue("Set-Cookie").orElseThrow().split(";", 2)[0];
+        }
+
+        // returns {elapsed nanos, errors, sorted latencies...}
+        private static long[] run(HttpClient client, String mode, String name, HttpRequest req,
+                                  int concurrency, int requests) throws InterruptedException {
+            Semaphore inFlight = new Semaphore(concurrency);
+            long[] latencies = new long[requests];
+            AtomicLong errors = new AtomicLong();
+            CountDownLatch done = new CountDownLatch(requests);
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                inFlight.acquire();
+                int slot = i;
+                long t0 = System.nanoTime();
+                client.sendAsync(req, HttpResponse.BodyHandlers.discarding()).whenComplete((res, err) -> {
+                    latencies[slot] = System.nanoTime() - t0;
+                    if (err != null || res.statusCode() >= 500) errors.incrementAndGet();
+                    inFlight.release();
+                    done.countDown();
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            Arrays.sort(latencies);
+            long[] out = new long[latencies.length + 2];
+            out[0] = elapsed;
+            out[1] = errors.get();
+            System.arraycopy(latencies, 0, out, 2, latencies.length);
+            return out;
+        }
+
+        private static void report(String mode, String name, long[] r) {
+            int n = r.length - 2;
+            System.out.printf("%-9s %-12s %10.0f %9.2f %9.2f %7d%n", mode, name,
+                    n * 1e9 / r[0], r[2 + n / 2] / 1e6, r[2 + (int) (n * 0.99)] / 1e6, r[1]);
+        }
+    }
 }
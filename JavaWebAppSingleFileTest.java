@@ -0,0 +1,646 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.InvalidClassException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.session.SessionContext;
+import org.eclipse.jetty.server.session.SessionData;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit tests for JavaWebAppSingleFile. See the README testing note for how to
+ * compile and run them against the same classpath as the server.
+ */
+class JavaWebAppSingleFileTest {
+
+    /* ===== HELPERS ===== */
+
+    private static int dbSeq;
+
+    /** A private, empty in-memory H2 database, so tests never touch data/. */
+    private static JdbcDataSource memoryDb() {
+        JdbcDataSource ds = new JdbcDataSource();
+        ds.setURL("jdbc:h2:mem:test" + (++dbSeq) + ";DB_CLOSE_DELAY=-1");
+        return ds;
+    }
+
+    /** An in-memory database with the schema the server builds, from the real migration list. */
+    private static JdbcDataSource migratedDb() {
+        JdbcDataSource ds = memoryDb();
+        JavaWebAppSingleFile.migrate(ds);
+        return ds;
+    }
+
+    private static void execute(JdbcDataSource ds, String... sql) throws SQLException {
+        try (Connection c = ds.getConnection(); Statement st = c.createStatement()) {
+            for (String s : sql) st.execute(s);
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    /** Polls until the condition holds or a couple of seconds pass. */
+    private static boolean eventually(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            if (condition.getAsBoolean()) return true;
+            Thread.sleep(10);
+        }
+        return condition.getAsBoolean();
+    }
+
+    /* ===== ORDER BOOK ===== */
+
+    private static final byte BUY = JavaWebAppSingleFile.BUY, SELL = JavaWebAppSingleFile.SELL;
+    private static final byte LIMIT = JavaWebAppSingleFile.LIMIT, MARKET = JavaWebAppSingleFile.MARKET;
+
+    /** Records each execution as "maker>taker@price x qty". */
+    private static JavaWebAppSingleFile.TradeSink recorder(List<String> trades) {
+        return (makerId, makerUser, takerId, takerUser, takerSide, price, qty) ->
+                trades.add(makerId + ">" + takerId + "@" + price + "x" + qty);
+    }
+
+    /** Resting orders as "id:user:side:price:remaining", bids then asks, worst level first. */
+    private static List<String> resting(JavaWebAppSingleFile.OrderBook book) {
+        List<String> out = new ArrayList<>();
+        book.forEachResting((id, userId, side, price, remaining) ->
+                out.add(id + ":" + userId + ":" + (side == BUY ? "B" : "S") + ":" + price + ":" + remaining));
+        return out;
+    }
+
+    @Test
+    void bookFillsBetterPriceFirstThenEarlierOrderAtSamePrice() {
+        JavaWebAppSingleFile.OrderBook book = new JavaWebAppSingleFile.OrderBook("ABC");
+        List<String> trades = new ArrayList<>();
+        book.submit(1, 10, SELL, LIMIT, 10_100, 5, recorder(trades));
+        book.submit(2, 11, SELL, LIMIT, 10_000, 5, recorder(trades));
+        book.submit(3, 12, SELL, LIMIT, 10_000, 5, recorder(trades));
+        assertTrue(trades.isEmpty());
+
+        // the buy sweeps both orders at 100.00 in arrival order before touching 101.00
+        assertEquals(12, book.submit(4, 20, BUY, LIMIT, 10_100, 12, recorder(trades)));
+        assertEquals(List.of("2>4@10000x5", "3>4@10000x5", "1>4@10100x2"), trades);
+        assertEquals(10_100, book.lastTradePrice());
+        assertEquals(3, book.tradeCount());
+        assertEquals(List.of("1:10:S:10100:3"), resting(book));
+    }
+
+    @Test
+    void bookRestsLimitRemainderAndDropsMarketRemainder() {
+        JavaWebAppSingleFile.OrderBook book = new JavaWebAppSingleFile.OrderBook("ABC");
+        List<String> trades = new ArrayList<>();
+        book.submit(1, 10, SELL, LIMIT, 10_000, 4, recorder(trades));
+
+        // a limit buy fills what it can and rests the rest at its own price
+        assertEquals(4, book.submit(2, 20, BUY, LIMIT, 10_050, 10, recorder(trades)));
+        assertEquals(List.of("2:20:B:10050:6"), resting(book));
+        JavaWebAppSingleFile.OrderResult limit = JavaWebAppSingleFile.OrderResult.of(2, LIMIT, 10, 4, 10_000, false);
+        assertEquals(JavaWebAppSingleFile.OrderStatus.PARTIALLY_FILLED, limit.status);
+        assertEquals(6, limit.openQty);
+
+        // the resting buy is partly taken, keeping its place and its remainder
+        assertEquals(2, book.submit(3, 30, SELL, LIMIT, 10_000, 2, recorder(trades)));
+        assertEquals("2>3@10050x2", trades.get(1));
+        assertEquals(List.of("2:20:B:10050:4"), resting(book));
+
+        // a market sell larger than the book never rests
+        assertEquals(4, book.submit(4, 30, SELL, MARKET, 0, 9, recorder(trades)));
+        assertTrue(resting(book).isEmpty());
+        JavaWebAppSingleFile.OrderResult market = JavaWebAppSingleFile.OrderResult.of(4, MARKET, 9, 4, 10_050, false);
+        assertEquals(JavaWebAppSingleFile.OrderStatus.CANCELLED, market.status);
+        assertEquals(0, market.openQty);
+    }
+
+    @Test
+    void bookCancelRemovesOnlyTheOwnersRestingOrder() {
+        JavaWebAppSingleFile.OrderBook book = new JavaWebAppSingleFile.OrderBook("ABC");
+        List<String> trades = new ArrayList<>();
+        book.submit(1, 10, SELL, LIMIT, 10_000, 5, recorder(trades));
+        book.submit(2, 11, SELL, LIMIT, 10_000, 7, recorder(trades));
+        book.submit(3, 12, BUY, LIMIT, 9_900, 3, recorder(trades));
+
+        assertEquals(0, book.cancel(1, 99), "another user's cancel must be ignored");
+        assertEquals(0, book.cancel(42, 10), "unknown order");
+        assertEquals(5, book.cancel(1, 10));
+        assertEquals(0, book.cancel(1, 10), "already cancelled");
+        assertEquals(3, book.cancel(3, 12));
+        assertEquals(List.of("2:11:S:10000:7"), resting(book));
+
+        // the cancelled order no longer takes part in matching
+        assertEquals(7, book.submit(4, 20, BUY, MARKET, 0, 10, recorder(trades)));
+        assertEquals(List.of("2>4@10000x7"), trades);
+        assertTrue(resting(book).isEmpty());
+    }
+
+    @Test
+    void bookStopsAtOwnRestingOrderAndCancelsRemainder() {
+        JavaWebAppSingleFile.OrderBook book = new JavaWebAppSingleFile.OrderBook("ABC");
+        List<String> trades = new ArrayList<>();
+        book.submit(1, 10, SELL, LIMIT, 10_000, 2, recorder(trades));
+        book.submit(2, 20, SELL, LIMIT, 10_000, 5, recorder(trades));
+
+        assertEquals(2, book.submit(3, 20, BUY, LIMIT, 10_000, 6, recorder(trades)));
+        assertTrue(book.selfTradePrevented());
+        assertEquals(List.of("1>3@10000x2"), trades);
+        assertEquals(List.of("2:20:S:10000:5"), resting(book));
+        assertEquals("selfTrade", JavaWebAppSingleFile.OrderResult.of(3, LIMIT, 6, 2, 10_000, true).reason);
+    }
+
+    /* ===== JOURNAL REPLAY ===== */
+
+    private static final class Shard implements AutoCloseable {
+        final JavaWebAppSingleFile.MatchingShard shard;
+
+        Shard(Path dir, JavaWebAppSingleFile.StockService service, JavaWebAppSingleFile.SymbolRegistry registry)
+                throws Exception {
+            shard = new JavaWebAppSingleFile.MatchingShard(0, service, registry,
+                    new JavaWebAppSingleFile.Journal(dir.resolve("journal"), 0, 1 << 16, false),
+                    dir.resolve("snapshots"), 64);
+            shard.addBook(0);
+            shard.start().get(10, TimeUnit.SECONDS);
+        }
+
+        JavaWebAppSingleFile.OrderResult submit(long id, int user, byte side, byte type, long price, long qty)
+                throws Exception {
+            return send(new JavaWebAppSingleFile.OrderCommand(JavaWebAppSingleFile.OrderCommand.SUBMIT,
+                    0, user, side, type, price, qty, id));
+        }
+
+        JavaWebAppSingleFile.OrderResult cancel(long id, int user) throws Exception {
+            return send(new JavaWebAppSingleFile.OrderCommand(JavaWebAppSingleFile.OrderCommand.CANCEL,
+                    0, user, BUY, LIMIT, 0, 0, id));
+        }
+
+        private JavaWebAppSingleFile.OrderResult send(JavaWebAppSingleFile.OrderCommand cmd) throws Exception {
+            assertTrue(shard.offer(cmd));
+            return cmd.done.get(10, TimeUnit.SECONDS);
+        }
+
+        List<String> resting() { return JavaWebAppSingleFileTest.resting(shard.book(0)); }
+
+        @Override public void close() throws Exception { shard.stop(); }
+    }
+
+    /** Three sells, a resting bid, then a buy that fills order 1 and part of order 2. */
+    private static void seedBook(Shard s) throws Exception {
+        s.submit(1, 10, SELL, LIMIT, 10_000, 5);
+        s.submit(2, 11, SELL, LIMIT, 10_000, 5);
+        s.submit(3, 12, BUY, LIMIT, 9_900, 4);
+        assertEquals(JavaWebAppSingleFile.OrderStatus.FILLED, s.submit(4, 20, BUY, LIMIT, 10_000, 7).status);
+    }
+
+    @Test
+    void journalReplayRestoresRestingOrdersInTimePriority(@TempDir Path dir) throws Exception {
+        JavaWebAppSingleFile.SymbolRegistry registry = symbols("ABC");
+        JavaWebAppSingleFile.StockService service = new JavaWebAppSingleFile.StockService(memoryDb());
+        List<String> expected;
+        try (Shard s = new Shard(dir, service, registry)) {
+            seedBook(s);
+            assertEquals(JavaWebAppSingleFile.OrderStatus.CANCELLED, s.cancel(3, 12).status);
+            JavaWebAppSingleFile.OrderResult partial = s.submit(5, 21, BUY, LIMIT, 10_000, 5);
+            assertEquals(JavaWebAppSingleFile.OrderStatus.PARTIALLY_FILLED, partial.status);
+            assertEquals(2, partial.openQty);
+            expected = s.resting();
+            assertEquals(List.of("5:21:B:10000:2"), expected);
+        }
+        // stop() leaves a snapshot behind; without it the whole journal is re-matched
+        Files.delete(dir.resolve("snapshots").resolve("shard-0.snap"));
+        try (Shard s = new Shard(dir, service, registry)) {
+            assertEquals(expected, s.resting());
+            // order 5 still fills ahead of a later order at its price
+            s.submit(6, 22, BUY, LIMIT, 10_000, 2);
+            assertEquals(3, s.submit(7, 14, SELL, LIMIT, 10_000, 3).filledQty);
+            assertEquals(List.of("6:22:B:10000:1"), s.resting());
+        }
+    }
+
+    @Test
+    void snapshotAndJournalTailRestoreRestingOrders(@TempDir Path dir) throws Exception {
+        JavaWebAppSingleFile.SymbolRegistry registry = symbols("ABC");
+        JavaWebAppSingleFile.StockService service = new JavaWebAppSingleFile.StockService(memoryDb());
+        Path snapshot = dir.resolve("snapshots").resolve("shard-0.snap");
+        Path early = dir.resolve("early.snap");
+        List<String> expected;
+        try (Shard s = new Shard(dir, service, registry)) {
+            seedBook(s);
+        }
+        // stop() wrote a snapshot; keep it to replay a journal tail on top of later
+        Files.copy(snapshot, early);
+
+        try (Shard s = new Shard(dir, service, registry)) {
+            assertEquals(List.of("3:12:B:9900:4", "2:11:S:10000:3"), s.resting());
+            s.cancel(3, 12);
+            s.submit(5, 13, SELL, LIMIT, 10_100, 6);
+            s.submit(6, 21, BUY, LIMIT, 10_000, 5);
+            expected = s.resting();
+            assertEquals(List.of("6:21:B:10000:2", "5:13:S:10100:6"), expected);
+        }
+
+        // latest snapshot alone
+        try (Shard s = new Shard(dir, service, registry)) {
+            assertEquals(expected, s.resting());
+        }
+        // older snapshot plus the journal written after it
+        Files.copy(early, snapshot, StandardCopyOption.REPLACE_EXISTING);
+        try (Shard s = new Shard(dir, service, registry)) {
+            assertEquals(expected, s.resting());
+        }
+    }
+
+    /* ===== QUOTES ===== */
+
+    @Test
+    void quotesGzipOnlyWhenAcceptEncodingAllowsIt() {
+        assertTrue(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("gzip, deflate, br"));
+        assertTrue(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("deflate;q=1, GZIP;q=0.5"));
+        assertTrue(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("*"));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.acceptsGzip(null));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("gzip;q=0"));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("gzip ; q=0.000, *"));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("*;q=0, identity"));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.acceptsGzip("x-gzipped, notgzip"));
+    }
+
+    @Test
+    void quoteEtagsChangeOnlyWithTheirSymbol() {
+        JavaWebAppSingleFile.Stock[] stocks = {
+            new JavaWebAppSingleFile.Stock(1, "AAA", "A", 100), new JavaWebAppSingleFile.Stock(2, "BBB", "B", 200) };
+        JavaWebAppSingleFile.StockSnapshot v1 = new JavaWebAppSingleFile.StockSnapshot(1, stocks);
+        JavaWebAppSingleFile.Stock[] next = stocks.clone();
+        next[1] = new JavaWebAppSingleFile.Stock(2, "BBB", "B", 250);
+        JavaWebAppSingleFile.StockSnapshot v2 = new JavaWebAppSingleFile.StockSnapshot(2, next, v1, 1);
+
+        JavaWebAppSingleFile.QuoteCache cache = new JavaWebAppSingleFile.QuoteCache();
+        String all1 = cache.all(v1).etag, a1 = cache.symbol(v1, 0).etag, b1 = cache.symbol(v1, 1).etag;
+        assertFalse(all1.equals(cache.all(v2).etag));
+        assertEquals(a1, cache.symbol(v2, 0).etag);
+        assertFalse(b1.equals(cache.symbol(v2, 1).etag));
+
+        assertTrue(JavaWebAppSingleFile.QuotesServlet.etagMatches("\"x\", " + a1, a1));
+        assertTrue(JavaWebAppSingleFile.QuotesServlet.etagMatches("*", a1));
+        assertFalse(JavaWebAppSingleFile.QuotesServlet.etagMatches(b1, cache.symbol(v2, 1).etag));
+    }
+
+    /* ===== CANDLES ===== */
+
+    @Test
+    void candleBarsCloseOnceAndLateTicksDoNotReopenThem() throws Exception {
+        JdbcDataSource ds = migratedDb();
+        JavaWebAppSingleFile.CandleDAO dao = new JavaWebAppSingleFile.CandleDAO(ds);
+        JavaWebAppSingleFile.CandleEngine engine = new JavaWebAppSingleFile.CandleEngine(symbols("AAPL"), dao);
+        long t0 = 1_767_225_600_000L; // 2026-01-01T00:00:00Z, long over
+        engine.record(0, t0 + 100, 10_000, 1);
+        engine.record(0, t0 + 400, 10_200, 2);
+        engine.record(0, t0 + 800, 9_900, 4);
+        assertEquals(List.of(t0, 10_000L, 10_200L, 9_900L, 9_900L, 7L), boxed(engine.openBar(0, 0)));
+
+        // a tick in the next second closes the first bar straight away
+        engine.record(0, t0 + 1_200, 10_100, 1);
+        assertEquals(t0 + 1_000, engine.openBar(0, 0)[0]);
+        engine.record(0, t0 + 900, 1, 100); // a trade projected after its bar closed
+        assertEquals(t0 + 1_000, engine.openBar(0, 0)[0]);
+
+        engine.start();
+        assertTrue(eventually(() -> engine.openBar(0, 0) == null), "the sweep closes bars whose period is over");
+        // the swept bar's bucket is closed for good as well
+        engine.record(0, t0 + 1_500, 1, 100);
+        assertEquals(null, engine.openBar(0, 0));
+        engine.stop();
+
+        List<long[]> seconds = dao.findRecent("AAPL", "1s", 10);
+        assertEquals(2, seconds.size());
+        assertEquals(List.of(t0, 10_000L, 10_200L, 9_900L, 9_900L, 7L), boxed(seconds.get(0)));
+        assertEquals(List.of(t0 + 1_000, 10_100L, 10_100L, 10_100L, 10_100L, 1L), boxed(seconds.get(1)));
+        // the minute bar was still open for the first late trade, but not for the one after the sweep
+        assertEquals(List.of(t0, 10_000L, 10_200L, 1L, 1L, 108L), boxed(dao.findRecent("AAPL", "1m", 1).get(0)));
+    }
+
+    private static List<Long> boxed(long[] values) {
+        List<Long> out = new ArrayList<>();
+        for (long v : values) out.add(v);
+        return out;
+    }
+
+    /* ===== PRICES ===== */
+
+    @Test
+    void pricesParseToTicksTheSameWayFromStringsAndFeedBytes() {
+        assertEquals(17_513, JavaWebAppSingleFile.parseTicks("175.125"));
+        assertEquals(17_512, JavaWebAppSingleFile.parseTicks("175.1249"));
+        assertEquals(500, JavaWebAppSingleFile.parseTicks("5"));
+        assertEquals(10, JavaWebAppSingleFile.parseTicks(".1"));
+        for (String bad : new String[] { "", ".", "1.2.3", "-1", "1e3", "99999999999999999999" }) {
+            assertThrows(NumberFormatException.class, () -> JavaWebAppSingleFile.parseTicks(bad), bad);
+        }
+
+        JavaWebAppSingleFile.TickParser parser = new JavaWebAppSingleFile.TickParser(symbols("AAPL"));
+        List<String> ticks = new ArrayList<>();
+        byte[] feed = "AAPL,175.125,3\nAAPL,99999999999999999999,1\nAAPL,1.2x,1\nMSFT,1,1\nAAPL,.1\r\n".getBytes();
+        parser.parse(feed, 0, feed.length, true, (symbol, ts, price, size) -> ticks.add(price + "x" + size));
+        assertEquals(List.of("17513x3", "10x0"), ticks);
+        assertEquals(1, parser.unknown);
+    }
+
+    /* ===== LEDGER ===== */
+
+    private static JavaWebAppSingleFile.Trade trade(long id, String symbol, long price, long qty, int buyer, int seller) {
+        JavaWebAppSingleFile.Trade t = new JavaWebAppSingleFile.Trade(symbol, price, qty, 0, 0, buyer, seller, 0);
+        t.id = id;
+        return t;
+    }
+
+    @Test
+    void ledgerPersistsAccountsAndReappliesOnlyNewerTrades() throws Exception {
+        JdbcDataSource ds = migratedDb();
+        JavaWebAppSingleFile.SymbolRegistry registry = symbols("AAPL", "GOOG");
+        JavaWebAppSingleFile.LedgerDAO ledgerDao = new JavaWebAppSingleFile.LedgerDAO(ds);
+        JavaWebAppSingleFile.TradeDAO tradeDao = new JavaWebAppSingleFile.TradeDAO(ds);
+        String insert = "INSERT INTO trades(id,symbol,price,qty,buy_order,sell_order,buyer_id,seller_id,trade_time)"
+                + " VALUES (%d, '%s', %d, %d, 0, 0, %d, %d, CURRENT_TIMESTAMP)";
+        execute(ds, String.format(insert, 1, "AAPL", 10_000, 3, 1, 2), String.format(insert, 2, "GOOG", 5_000, 2, 2, 1));
+
+        JavaWebAppSingleFile.Ledger ledger = new JavaWebAppSingleFile.Ledger(ledgerDao, tradeDao, registry, 100_000, 60_000);
+        ledger.recover();
+        ledger.start();
+        ledger.onTrades(List.of(trade(1, "AAPL", 10_000, 3, 1, 2), trade(2, "GOOG", 5_000, 2, 2, 1)));
+        assertEquals(80_000, ledger.cash(1));
+        assertEquals(120_000, ledger.cash(2));
+        assertEquals(3, ledger.position(1, 0));
+        assertEquals(-2, ledger.position(1, 1));
+        ledger.stop(); // final flush
+
+        // projected after the flush, so only the trades table has it
+        execute(ds, String.format(insert, 3, "AAPL", 1_000, 1, 1, 2));
+        ledger = new JavaWebAppSingleFile.Ledger(ledgerDao, tradeDao, registry, 100_000, 60_000);
+        ledger.recover();
+        assertEquals(79_000, ledger.cash(1));
+        assertEquals(4, ledger.position(1, 0));
+        assertEquals(-4, ledger.position(2, 0));
+        // a trade delivered again after recovery moves nothing
+        ledger.onTrades(List.of(trade(3, "AAPL", 1_000, 1, 1, 2)));
+        assertEquals(79_000, ledger.cash(1));
+        assertEquals(121_000, ledger.cash(2));
+    }
+
+    /* ===== RISK ===== */
+
+    private static final int USER = 7, OTHER = 8;
+
+    /** An in-memory ledger where every account starts with 100.00, and no band around the reference price. */
+    private static JavaWebAppSingleFile.RiskEngine riskEngine() {
+        JavaWebAppSingleFile.Ledger ledger = new JavaWebAppSingleFile.Ledger(null, null, symbols("ABC"), 10_000, 1_000);
+        return new JavaWebAppSingleFile.RiskEngine(ledger, 1, 100, 20, 0);
+    }
+
+    private static JavaWebAppSingleFile.RiskEngine.Reject buy(JavaWebAppSingleFile.RiskEngine risk,
+                                                             long id, long price, long qty) {
+        return risk.check(id, USER, 0, BUY, LIMIT, price, qty, 1_000);
+    }
+
+    private static JavaWebAppSingleFile.Trade fill(long buyOrder, long sellOrder, long qty) {
+        return new JavaWebAppSingleFile.Trade("ABC", 1_000, qty, buyOrder, sellOrder, USER, OTHER, 0);
+    }
+
+    @Test
+    void riskReservesBuyingPowerUntilCancelOrFill() {
+        JavaWebAppSingleFile.RiskEngine risk = riskEngine();
+        assertEquals(null, buy(risk, 1, 1_000, 6));
+        // 60.00 is reserved, so another 50.00 no longer fits in 100.00
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.BUYING_POWER, buy(risk, 2, 1_000, 5));
+
+        risk.release(1, 2); // cancel of part of order 1
+        assertEquals(null, buy(risk, 2, 1_000, 5));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.BUYING_POWER, buy(risk, 3, 1_000, 2));
+
+        risk.onTrades(List.of(fill(1, 50, 4), fill(2, 51, 5)));
+        assertEquals(null, buy(risk, 3, 1_000, 10));
+        // a release never goes below zero, however often a fill is reported
+        risk.onTrades(List.of(fill(1, 50, 4)));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.BUYING_POWER, buy(risk, 4, 1_000, 1));
+    }
+
+    @Test
+    void riskReleasesWhatWillNeverRestOrFill() {
+        JavaWebAppSingleFile.RiskEngine risk = riskEngine();
+        assertEquals(null, buy(risk, 1, 1_000, 10));
+        // a market-style outcome: 4 filled, the rest cancelled and released at once
+        risk.submitted(1, 10, JavaWebAppSingleFile.OrderResult.of(1, MARKET, 10, 4, 1_000, false));
+        assertEquals(null, buy(risk, 2, 1_000, 6));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.BUYING_POWER, buy(risk, 3, 1_000, 1));
+        // a command that failed on its shard releases everything
+        risk.submitted(2, 6, null);
+        assertEquals(null, buy(risk, 3, 1_000, 6));
+    }
+
+    @Test
+    void riskChecksPositionLimitAndRejectsMarketOrdersWithoutReference() {
+        JavaWebAppSingleFile.RiskEngine risk = riskEngine();
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.ORDER_SIZE, buy(risk, 1, 1, 101));
+        assertEquals(null, risk.check(1, USER, 0, SELL, LIMIT, 1_000, 15, 1_000));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.POSITION_LIMIT,
+                risk.check(2, USER, 0, SELL, LIMIT, 1_000, 6, 1_000));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.NO_REFERENCE_PRICE,
+                risk.check(3, USER, 0, BUY, MARKET, 0, 1, 0));
+        assertEquals(null, risk.check(3, USER, 0, BUY, MARKET, 0, 1, 1_000));
+    }
+
+    @Test
+    void riskSkipsReleasesForTradesAlreadyInRecoveredBooks() {
+        JavaWebAppSingleFile.RiskEngine risk = riskEngine();
+        // recovered with 8 left after a fill the projector had not reached yet
+        risk.restore(1, USER, 0, BUY, 1_000, 8);
+        JavaWebAppSingleFile.Trade before = fill(1, 50, 2);
+        before.recovered = true;
+        risk.onTrades(List.of(before));
+        assertEquals(JavaWebAppSingleFile.RiskEngine.Reject.BUYING_POWER, buy(risk, 2, 1_000, 3));
+
+        risk.onTrades(List.of(fill(1, 51, 8)));
+        assertEquals(null, buy(risk, 2, 1_000, 10));
+    }
+
+    /* ===== TRADE HISTORY ===== */
+
+    /** Walks user 1's history page by page the way TradeHistoryServlet's cursor does. */
+    private static List<String> pageThrough(JavaWebAppSingleFile.TradeDAO dao, int limit) throws Exception {
+        List<String> rows = new ArrayList<>();
+        long[] last = {Long.MAX_VALUE / 2, Long.MAX_VALUE};
+        while (true) {
+            int n = dao.history(1, last[0], last[1], limit, (id, time, symbol, buy, price, qty) -> {
+                rows.add(id + (buy ? "B" : "S"));
+                last[0] = time;
+                last[1] = id;
+            });
+            if (n < limit) return rows;
+        }
+    }
+
+    @Test
+    void historyPagesNewestFirstAcrossBothSides() throws Exception {
+        JdbcDataSource ds = migratedDb();
+        String insert = "INSERT INTO trades(id,symbol,price,qty,buy_order,sell_order,buyer_id,seller_id,trade_time)"
+                + " VALUES (%d, 'AAPL', 10000, 1, 0, 0, %d, %d, TIMESTAMP '2026-01-01 10:00:0%d')";
+        // trades 2 to 4 share a timestamp, so the id breaks the tie inside it
+        execute(ds, String.format(insert, 1, 1, 2, 0), String.format(insert, 2, 2, 1, 5),
+                String.format(insert, 3, 1, 3, 5), String.format(insert, 4, 3, 1, 5),
+                String.format(insert, 5, 2, 3, 6), String.format(insert, 6, 1, 2, 7));
+        JavaWebAppSingleFile.TradeDAO dao = new JavaWebAppSingleFile.TradeDAO(ds);
+        List<String> expected = List.of("6B", "4S", "3B", "2S", "1B");
+        assertEquals(expected, pageThrough(dao, 10));
+        assertEquals(expected, pageThrough(dao, 1));
+        assertEquals(expected, pageThrough(dao, 2));
+    }
+
+    /* ===== TICK HISTORY ===== */
+
+    private static JavaWebAppSingleFile.SymbolRegistry symbols(String... names) {
+        JavaWebAppSingleFile.Stock[] stocks = new JavaWebAppSingleFile.Stock[names.length];
+        for (int i = 0; i < names.length; i++) stocks[i] = new JavaWebAppSingleFile.Stock(i + 1, names[i], names[i], 100);
+        return new JavaWebAppSingleFile.SymbolRegistry(stocks);
+    }
+
+    @Test
+    void tickStoreRangeSeesStagedTicksAndSurvivesReopen(@TempDir Path dir) throws Exception {
+        JavaWebAppSingleFile.SymbolRegistry registry = symbols("AAA", "BBB");
+        long t0 = System.currentTimeMillis() / JavaWebAppSingleFile.TickStore.DAY_MS
+                * JavaWebAppSingleFile.TickStore.DAY_MS + 1_000;
+        // more than one block, ending part-way through a staged run
+        int n = JavaWebAppSingleFile.TickStore.BLOCK_TICKS + JavaWebAppSingleFile.TickStore.STAGE_TICKS * 3 + 5;
+        JavaWebAppSingleFile.TickStore store = new JavaWebAppSingleFile.TickStore(dir, registry);
+        for (int i = 0; i < n; i++) {
+            store.onTick(0, t0 + i, 10_000 + i, i);
+            store.onTick(1, t0 + i, 20_000 + i, 2 * i);
+        }
+        JavaWebAppSingleFile.TickRange all = store.range(0, t0, t0 + n, Integer.MAX_VALUE);
+        assertEquals(n, all.count);
+        for (int i = 0; i < n; i++) {
+            assertEquals(t0 + i, all.ts[i]);
+            assertEquals(10_000 + i, all.price[i]);
+            assertEquals(i, all.size[i]);
+        }
+        store.onTick(1, t0 + n, 30_000, 7); // staged only, written out by close()
+        store.close();
+
+        store = new JavaWebAppSingleFile.TickStore(dir, registry);
+        JavaWebAppSingleFile.TickRange tail = store.range(1, t0 + n - 2, t0 + n, 10);
+        assertEquals(3, tail.count);
+        assertEquals(20_000 + n - 2, tail.price[0]);
+        assertEquals(30_000, tail.price[2]);
+        // a tick stamped earlier than the last stored one is clamped, keeping the column sorted
+        store.onTick(1, t0, 40_000, 1);
+        JavaWebAppSingleFile.TickRange last = store.range(1, t0 + n, t0 + n, 10);
+        assertEquals(2, last.count);
+        assertEquals(40_000, last.price[1]);
+        store.close();
+    }
+
+    /* ===== SESSION STORE ===== */
+
+    private static final byte[] SECRET = "0123456789abcdef0123456789abcdef".getBytes();
+
+    private static JavaWebAppSingleFile.OffHeapSessionDataStore sessionStore(Path dir, int listenPort, int peerPort)
+            throws Exception {
+        JavaWebAppSingleFile.OffHeapSessionDataStore store =
+                new JavaWebAppSingleFile.OffHeapSessionDataStore(dir.resolve("sessions.dat"), 64, 512);
+        if (listenPort > 0) {
+            store.setReplicator(new JavaWebAppSingleFile.SessionReplicator(store,
+                    new InetSocketAddress("127.0.0.1", listenPort),
+                    peerPort > 0 ? "127.0.0.1:" + peerPort : "", SECRET));
+        }
+        store.initialize(new SessionContext("test", null));
+        store.start();
+        return store;
+    }
+
+    private static SessionData session(String id, Object attribute) {
+        long now = System.currentTimeMillis();
+        SessionData d = new SessionData(id, "/", "0.0.0.0", now, now, now, 60_000);
+        d.setExpiry(now + 60_000);
+        d.setAttribute("a", attribute);
+        return d;
+    }
+
+    @Test
+    void replicationAppliesSignedFramesAndDropsUnsignedOnes(@TempDir Path dir) throws Exception {
+        int portA = freePort(), portB = freePort();
+        JavaWebAppSingleFile.OffHeapSessionDataStore b = sessionStore(dir.resolve("b"), portB, 0);
+        JavaWebAppSingleFile.OffHeapSessionDataStore a = sessionStore(dir.resolve("a"), portA, portB);
+        try {
+            a.doStore("signed", session("signed", "hello"), 0);
+            assertTrue(eventually(() -> b.doExists("signed")));
+            assertEquals("hello", b.doLoad("signed").getAttribute("a"));
+
+            // a well-formed PUT frame with a zeroed MAC, as an unauthenticated client would send it
+            byte[] record = JavaWebAppSingleFile.OffHeapSessionDataStore.encode(session("forged", "evil"));
+            try (Socket s = new Socket("127.0.0.1", portB)) {
+                DataOutputStream out = new DataOutputStream(s.getOutputStream());
+                out.writeInt(1 + record.length + 32);
+                out.writeByte(1);
+                out.write(record);
+                out.write(new byte[32]);
+                out.flush();
+                assertEquals(-1, s.getInputStream().read(), "replicator should close the connection");
+            }
+            assertFalse(b.doExists("forged"));
+        } finally {
+            a.stop();
+            b.stop();
+        }
+    }
+
+    @Test
+    void sessionStoreReusesTombstonesAndCompactsPastThreshold(@TempDir Path dir) throws Exception {
+        JavaWebAppSingleFile.OffHeapSessionDataStore store = sessionStore(dir, 0, 0);
+        try {
+            // 64 slots: churn far more sessions through the table than it can hold at once
+            for (int round = 0; round < 20; round++) {
+                for (int i = 0; i < 40; i++) store.doStore("s" + round + "-" + i, session("s" + round + "-" + i, i), 0);
+                for (int i = 0; i < 40; i++) assertTrue(store.delete("s" + round + "-" + i));
+            }
+            assertTrue(JavaWebAppSingleFile.Metrics.get("sessions.compactions") > 0);
+            assertTrue(JavaWebAppSingleFile.Metrics.get("sessions.tombstones") <= 16);
+
+            for (int i = 0; i < 40; i++) store.doStore("live" + i, session("live" + i, i), 0);
+            store.stop();
+            store.start();
+            for (int i = 0; i < 40; i++) assertEquals(i, store.doLoad("live" + i).getAttribute("a"));
+            assertFalse(store.doExists("s19-0"));
+        } finally {
+            store.stop();
+        }
+    }
+
+    @Test
+    void sessionLoadRejectsClassesOutsideTheSerialFilter(@TempDir Path dir) throws Exception {
+        JavaWebAppSingleFile.OffHeapSessionDataStore store = sessionStore(dir, 0, 0);
+        try {
+            store.doStore("ok", session("ok", new ArrayList<>(List.of("x", 1L))), 0);
+            assertEquals(List.of("x", 1L), store.doLoad("ok").getAttribute("a"));
+
+            store.doStore("bad", session("bad", URI.create("http://example.com/")), 0);
+            assertThrows(InvalidClassException.class, () -> store.doLoad("bad"));
+        } finally {
+            store.stop();
+        }
+    }
+}